@@ -1,16 +1,11 @@
 package com.imaginarycode.minecraft.redisbungee;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.net.InetAddresses;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.UncheckedExecutionException;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerChangedServerNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerLeftNetworkEvent;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
@@ -18,15 +13,12 @@ import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
-import redis.clients.jedis.Jedis;
 
 import java.net.InetAddress;
-import java.util.Objects;
-import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class manages all the data that RedisBungee fetches from Redis, along with updates to that data.
@@ -35,224 +27,379 @@ import java.util.logging.Level;
  */
 public class DataManager implements Listener {
     private final RedisBungee plugin;
-    private final Cache<UUID, String> serverCache = createCache();
-    private final Cache<UUID, String> proxyCache = createCache();
-    private final Cache<UUID, InetAddress> ipCache = createCache();
-    private final Cache<UUID, Long> lastOnlineCache = createCache();
+    private final LocalPlayers localPlayers;
+    private final PlayerRecordCache records;
+    private final Logger logger;
 
     public DataManager(RedisBungee plugin) {
-        this.plugin = plugin;
+        this(plugin, new ProxyPlayers(plugin), new PlayerRecordCache(plugin.getStorage(), RedisBungee.getConfiguration().getPlayerCacheSpec(),
+                RedisBungee.getConfiguration().getUnknownPlayerCacheSeconds(), plugin.getLogger()), plugin.getLogger());
     }
 
-    private static <K, V> Cache<K, V> createCache() {
-        // TODO: Allow customization via cache specification, ala ServerListPlus
-        return CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .expireAfterWrite(1, TimeUnit.HOURS)
-                .build();
+    /**
+     * @param plugin only used to handle the messages on {@code redisbungee-data}, so it may be null where there are
+     *               none
+     */
+    @VisibleForTesting
+    public DataManager(RedisBungee plugin, LocalPlayers localPlayers, PlayerRecordCache records, Logger logger) {
+        this.plugin = plugin;
+        this.localPlayers = localPlayers;
+        this.records = records;
+        this.logger = logger;
     }
 
-    private final JsonParser parser = new JsonParser();
-
     public String getServer(final UUID uuid) {
-        ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
-
-        if (player != null)
-            return player.getServer() != null ? player.getServer().getInfo().getName() : null;
+        PlayerRecord known = localPlayers.get(uuid);
+        if (known != null || localPlayers.isComplete())
+            return known != null ? known.getServer() : null;
 
         try {
-            return serverCache.get(uuid, new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "server"), "user not found");
-                    }
-                }
-            });
+            PlayerRecord record = records.get(uuid);
+            return record != null ? record.getServer() : null;
         } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get server", e);
+            logger.log(Level.SEVERE, "Unable to get server", e);
             throw new RuntimeException("Unable to get server for " + uuid, e);
         }
     }
 
     public String getProxy(final UUID uuid) {
-        ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
-
-        if (player != null)
-            return RedisBungee.getConfiguration().getServerId();
+        PlayerRecord known = localPlayers.get(uuid);
+        if (known != null || localPlayers.isComplete())
+            return known != null ? known.getProxy() : null;
 
         try {
-            return proxyCache.get(uuid, new Callable<String>() {
-                @Override
-                public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "proxy"), "user not found");
-                    }
-                }
-            });
+            PlayerRecord record = records.get(uuid);
+            return record != null ? record.getProxy() : null;
         } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get proxy", e);
+            logger.log(Level.SEVERE, "Unable to get proxy", e);
             throw new RuntimeException("Unable to get proxy for " + uuid, e);
         }
     }
 
     public InetAddress getIp(final UUID uuid) {
-        ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
-
-        if (player != null)
-            return player.getAddress().getAddress();
+        // The replica doesn't always have the address of a player who joined before it was seeded.
+        PlayerRecord known = localPlayers.get(uuid);
+        if (known != null ? known.getAddress() != null : localPlayers.isComplete())
+            return known != null ? known.getAddress() : null;
 
         try {
-            return ipCache.get(uuid, new Callable<InetAddress>() {
-                @Override
-                public InetAddress call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "ip");
-                        if (result == null)
-                            throw new NullPointerException("user not found");
-                        return InetAddresses.forString(result);
-                    }
-                }
-            });
+            PlayerRecord record = records.get(uuid);
+            return record != null ? record.getAddress() : null;
         } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().log(Level.SEVERE, "Unable to get IP", e);
+            logger.log(Level.SEVERE, "Unable to get IP", e);
             throw new RuntimeException("Unable to get IP for " + uuid, e);
         }
     }
 
     public long getLastOnline(final UUID uuid) {
-        ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
-
-        if (player != null)
+        if (localPlayers.get(uuid) != null)
             return 0;
 
         try {
-            return lastOnlineCache.get(uuid, new Callable<Long>() {
-                @Override
-                public Long call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "online");
-                        return result == null ? -1 : Long.valueOf(result);
-                    }
-                }
-            });
-        } catch (ExecutionException e) {
-            plugin.getLogger().log(Level.SEVERE, "Unable to get last time online", e);
+            PlayerRecord record = records.get(uuid);
+            return record != null ? record.getLastOnline() : -1;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.log(Level.SEVERE, "Unable to get last time online", e);
             throw new RuntimeException("Unable to get last time online for " + uuid, e);
         }
     }
 
-    private void invalidate(UUID uuid) {
-        ipCache.invalidate(uuid);
-        lastOnlineCache.invalidate(uuid);
-        serverCache.invalidate(uuid);
-        proxyCache.invalidate(uuid);
+    /**
+     * @return how many players have a record cached
+     */
+    public long getCachedRecords() {
+        return records.size();
+    }
+
+    public boolean isPlayerOnline(UUID uuid) {
+        if (localPlayers.isComplete())
+            return localPlayers.get(uuid) != null;
+
+        return getLastOnline(uuid) == 0;
+    }
+
+    /**
+     * Bulk version of {@link #getServer(UUID)}. Every player asked about is in the result, with null for those who
+     * aren't on a server.
+     */
+    public Map<UUID, String> getServers(Collection<UUID> uuids) {
+        Map<UUID, String> servers = new HashMap<>(uuids.size());
+        List<UUID> remote = new ArrayList<>();
+        boolean complete = localPlayers.isComplete();
+        for (UUID uuid : uuids) {
+            PlayerRecord known = localPlayers.get(uuid);
+            if (known != null || complete)
+                servers.put(uuid, known != null ? known.getServer() : null);
+            else
+                remote.add(uuid);
+        }
+        for (Map.Entry<UUID, PlayerRecord> entry : records.getAll(remote).entrySet()) {
+            servers.put(entry.getKey(), entry.getValue() != null ? entry.getValue().getServer() : null);
+        }
+        return servers;
+    }
+
+    /**
+     * Bulk version of {@link #getProxy(UUID)}. Every player asked about is in the result, with null for those who
+     * are offline.
+     */
+    public Map<UUID, String> getProxies(Collection<UUID> uuids) {
+        Map<UUID, String> proxies = new HashMap<>(uuids.size());
+        List<UUID> remote = new ArrayList<>();
+        boolean complete = localPlayers.isComplete();
+        for (UUID uuid : uuids) {
+            PlayerRecord known = localPlayers.get(uuid);
+            if (known != null || complete)
+                proxies.put(uuid, known != null ? known.getProxy() : null);
+            else
+                remote.add(uuid);
+        }
+        for (Map.Entry<UUID, PlayerRecord> entry : records.getAll(remote).entrySet()) {
+            proxies.put(entry.getKey(), entry.getValue() != null ? entry.getValue().getProxy() : null);
+        }
+        return proxies;
+    }
+
+    /**
+     * Bulk version of {@link #getIp(UUID)}. Every player asked about is in the result, with null for those who are
+     * offline.
+     */
+    public Map<UUID, InetAddress> getIps(Collection<UUID> uuids) {
+        Map<UUID, InetAddress> ips = new HashMap<>(uuids.size());
+        List<UUID> remote = new ArrayList<>();
+        boolean complete = localPlayers.isComplete();
+        for (UUID uuid : uuids) {
+            PlayerRecord known = localPlayers.get(uuid);
+            if (known != null ? known.getAddress() != null : complete)
+                ips.put(uuid, known != null ? known.getAddress() : null);
+            else
+                remote.add(uuid);
+        }
+        for (Map.Entry<UUID, PlayerRecord> entry : records.getAll(remote).entrySet()) {
+            ips.put(entry.getKey(), entry.getValue() != null ? entry.getValue().getAddress() : null);
+        }
+        return ips;
+    }
+
+    /**
+     * Bulk version of {@link #getLastOnline(UUID)}. Every player asked about is in the result.
+     */
+    public Map<UUID, Long> getLastOnlineTimes(Collection<UUID> uuids) {
+        Map<UUID, Long> lastOnline = new HashMap<>(uuids.size());
+        List<UUID> remote = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            if (localPlayers.get(uuid) != null)
+                lastOnline.put(uuid, 0L);
+            else
+                remote.add(uuid);
+        }
+        for (Map.Entry<UUID, PlayerRecord> entry : records.getAll(remote).entrySet()) {
+            lastOnline.put(entry.getKey(), entry.getValue() != null ? entry.getValue().getLastOnline() : -1L);
+        }
+        return lastOnline;
+    }
+
+    /**
+     * Bulk version of {@link #isPlayerOnline(UUID)}.
+     */
+    public Map<UUID, Boolean> arePlayersOnline(Collection<UUID> uuids) {
+        Map<UUID, Boolean> online = new HashMap<>(uuids.size());
+        if (localPlayers.isComplete()) {
+            for (UUID uuid : uuids) {
+                online.put(uuid, localPlayers.get(uuid) != null);
+            }
+            return online;
+        }
+
+        for (Map.Entry<UUID, Long> entry : getLastOnlineTimes(uuids).entrySet()) {
+            online.put(entry.getKey(), entry.getValue() == 0);
+        }
+        return online;
     }
 
     @EventHandler
     public void onPostLogin(PostLoginEvent event) {
         // Invalidate all entries related to this player, since they now lie.
-        invalidate(event.getPlayer().getUniqueId());
+        records.invalidate(event.getPlayer().getUniqueId());
     }
 
     @EventHandler
     public void onPlayerDisconnect(PlayerDisconnectEvent event) {
         // Invalidate all entries related to this player, since they now lie.
-        invalidate(event.getPlayer().getUniqueId());
+        records.invalidate(event.getPlayer().getUniqueId());
     }
 
-    @EventHandler
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (!event.getChannel().equals("redisbungee-data"))
-            return;
-
-        // Partially deserialize the message so we can look at the action
-        JsonObject jsonObject = parser.parse(event.getMessage()).getAsJsonObject();
-
-        String source = jsonObject.get("source").getAsString();
-
-        if (source.equals(RedisBungee.getConfiguration().getServerId()))
+    /**
+     * Handles a message received on {@code redisbungee-data}. This is called on the dispatcher lane for the target
+     * player, so the network events are fired from here directly to keep them in order.
+     */
+    void onDataMessage(DataManagerMessage<?> message) {
+        // Our own messages are only of interest to the replica, which tracks every player including ours.
+        PresenceReplica replica = plugin.getReplica();
+        boolean local = message.getSource().equals(RedisBungee.getConfiguration().getServerId());
+        if (local && replica == null)
             return;
 
-        DataManagerMessage.Action action = DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
-
-        switch (action) {
+        switch (message.getAction()) {
             case JOIN:
-                final DataManagerMessage<LoginPayload> message1 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LoginPayload>>() {
-                }.getType());
-                proxyCache.put(message1.getTarget(), message1.getSource());
-                lastOnlineCache.put(message1.getTarget(), (long) 0);
-                ipCache.put(message1.getTarget(), message1.getPayload().getAddress());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerJoinedNetworkEvent(message1.getTarget()));
-                    }
-                });
+                DataManagerMessage<LoginPayload> message1 = (DataManagerMessage<LoginPayload>) message;
+                if (replica != null)
+                    replica.join(message1.getTarget(), message1.getSource(), message1.getPayload().getAddress());
+                if (local)
+                    break;
+                plugin.getCountTracker().adjust(message1.getSource(), 1);
+                // They aren't on a server until the SERVER_CHANGE that follows.
+                records.put(message1.getTarget(), new PlayerRecord(null, message1.getSource(), message1.getPayload().getAddress(), 0));
+                plugin.getProxy().getPluginManager().callEvent(new PlayerJoinedNetworkEvent(message1.getTarget()));
                 break;
             case LEAVE:
-                final DataManagerMessage<LogoutPayload> message2 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LogoutPayload>>() {
-                }.getType());
-                invalidate(message2.getTarget());
-                lastOnlineCache.put(message2.getTarget(), message2.getPayload().getTimestamp());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerLeftNetworkEvent(message2.getTarget()));
-                    }
-                });
+                DataManagerMessage<LogoutPayload> message2 = (DataManagerMessage<LogoutPayload>) message;
+                if (replica != null)
+                    replica.leave(message2.getTarget());
+                if (local)
+                    break;
+                plugin.getCountTracker().adjust(message2.getSource(), -1);
+                // This is what the player's hash holds once they have been cleaned up.
+                records.put(message2.getTarget(), new PlayerRecord(null, null, null, message2.getPayload().getTimestamp()));
+                plugin.getProxy().getPluginManager().callEvent(new PlayerLeftNetworkEvent(message2.getTarget()));
                 break;
             case SERVER_CHANGE:
-                final DataManagerMessage<ServerChangePayload> message3 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<ServerChangePayload>>() {
-                }.getType());
-                serverCache.put(message3.getTarget(), message3.getPayload().getServer());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        plugin.getProxy().getPluginManager().callEvent(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer()));
-                    }
-                });
+                DataManagerMessage<ServerChangePayload> message3 = (DataManagerMessage<ServerChangePayload>) message;
+                if (replica != null)
+                    replica.serverChange(message3.getTarget(), message3.getSource(), message3.getPayload().getServer());
+                if (local)
+                    break;
+                // Without a record there is nothing to update, and the rest of one would have to come from Redis anyway.
+                PlayerRecord record = records.getIfPresent(message3.getTarget());
+                if (record != null)
+                    records.put(message3.getTarget(), record.withServer(message3.getPayload().getServer()));
+                plugin.getProxy().getPluginManager().callEvent(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer()));
                 break;
         }
     }
 
+    /**
+     * The players {@link DataManager} can answer for without asking Redis.
+     *
+     * @since 0.5
+     */
+    @VisibleForTesting
+    public interface LocalPlayers {
+        /**
+         * Returns an online player's record, with a last time online of 0, if it is known here.
+         */
+        PlayerRecord get(UUID uuid);
+
+        /**
+         * Returns whether every online player is known here, so that anyone else is offline.
+         */
+        boolean isComplete();
+    }
+
+    /**
+     * The players connected to this proxy, and everyone in the {@link PresenceReplica} if it is enabled.
+     */
+    @RequiredArgsConstructor
+    private static class ProxyPlayers implements LocalPlayers {
+        private final RedisBungee plugin;
+
+        @Override
+        public PlayerRecord get(UUID uuid) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
+            if (player != null)
+                return new PlayerRecord(player.getServer() != null ? player.getServer().getInfo().getName() : null,
+                        RedisBungee.getConfiguration().getServerId(), player.getAddress().getAddress(), 0);
+
+            PresenceReplica replica = plugin.getReplica();
+            PresenceReplica.Presence presence = replica != null ? replica.get(uuid) : null;
+            return presence != null ? new PlayerRecord(presence.getServer(), presence.getProxy(), presence.getAddress(), 0) : null;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return plugin.getReplica() != null;
+        }
+    }
+
+    /**
+     * What is known about a player: the fields of their {@code player:<uuid>} hash. The last time online is 0 while
+     * they are online, and -1 if it isn't known.
+     *
+     * @since 0.5
+     */
     @Getter
     @RequiredArgsConstructor
-    static class DataManagerMessage<T> {
+    public static class PlayerRecord {
+        private final String server;
+        private final String proxy;
+        private final InetAddress address;
+        private final long lastOnline;
+
+        public PlayerRecord withServer(String server) {
+            return new PlayerRecord(server, proxy, address, lastOnline);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class DataManagerMessage<T> {
         private final UUID target;
-        private final String source = RedisBungee.getApi().getServerId();
+        private final String source;
         private final Action action; // for future use!
         private final T payload;
 
-        enum Action {
+        DataManagerMessage(UUID target, Action action, T payload) {
+            this(target, RedisBungee.getApi().getServerId(), action, payload);
+        }
+
+        public enum Action {
             JOIN,
             LEAVE,
-            SERVER_CHANGE
+            SERVER_CHANGE,
+            /**
+             * Several players leaving a proxy at once, as when it shuts down or is cleaned up after disappearing. It
+             * is split into a {@link #LEAVE} per player on arrival, so it never reaches
+             * {@link DataManager#onDataMessage}.
+             */
+            LEAVE_BATCH
         }
     }
 
     @Getter
     @RequiredArgsConstructor
-    static class LoginPayload {
+    public static class LoginPayload {
         private final InetAddress address;
     }
 
     @Getter
     @RequiredArgsConstructor
-    static class ServerChangePayload {
+    public static class ServerChangePayload {
         private final String server;
         private final String oldServer;
     }
 
     @Getter
     @RequiredArgsConstructor
-    static class LogoutPayload {
+    public static class LogoutPayload {
         private final long timestamp;
     }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class BatchLogoutPayload {
+        private final List<UUID> players;
+        private final long timestamp;
+
+        /**
+         * Returns the {@link DataManagerMessage.Action#LEAVE} each of the players would have been sent on their own.
+         */
+        public List<DataManagerMessage<LogoutPayload>> split(String source) {
+            List<DataManagerMessage<LogoutPayload>> messages = new ArrayList<>(players.size());
+            LogoutPayload payload = new LogoutPayload(timestamp);
+            for (UUID player : players) {
+                messages.add(new DataManagerMessage<>(player, source, DataManagerMessage.Action.LEAVE, payload));
+            }
+            return messages;
+        }
+    }
 }
@@ -0,0 +1,209 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.imaginarycode.minecraft.redisbungee.DataManager.DataManagerMessage;
+
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Encodes and decodes the messages sent on {@code redisbungee-data}.
+ * <p>
+ * Version 1 is the original Gson encoding. Version 2 is a binary encoding: a marker byte, the version, the action,
+ * the target as two longs, the source proxy and then the payload, with strings and addresses length-prefixed.
+ * Every proxy advertises the newest version it understands in the {@code data-protocol} hash, and we only send
+ * binary messages once every live proxy can read them. Both versions are always accepted.
+ * <p>
+ * Version 3 keeps the binary encoding and adds {@link DataManagerMessage.Action#LEAVE_BATCH}, whose payload is the
+ * time and a count followed by the players. It is only sent once every live proxy is on version 3, see
+ * {@link #canBatch()}. Its target is unused and always {@link #NO_TARGET}.
+ *
+ * @since 0.5
+ */
+@VisibleForTesting
+public class DataMessageCodec {
+    public static final int JSON_VERSION = 1;
+    public static final int BINARY_VERSION = 2;
+    public static final int BATCH_VERSION = 3;
+    public static final int SUPPORTED_VERSION = BATCH_VERSION;
+    public static final UUID NO_TARGET = new UUID(0, 0);
+
+    static final String CHANNEL = "redisbungee-data";
+
+    // JSON always begins with '{' (or whitespace), and this is not a valid first byte in UTF-8 either.
+    private static final byte MARKER = (byte) 0x80;
+
+    private static final Type JOIN_TYPE = new TypeToken<DataManagerMessage<DataManager.LoginPayload>>() {
+    }.getType();
+    private static final Type LEAVE_TYPE = new TypeToken<DataManagerMessage<DataManager.LogoutPayload>>() {
+    }.getType();
+    private static final Type SERVER_CHANGE_TYPE = new TypeToken<DataManagerMessage<DataManager.ServerChangePayload>>() {
+    }.getType();
+    private static final Type LEAVE_BATCH_TYPE = new TypeToken<DataManagerMessage<DataManager.BatchLogoutPayload>>() {
+    }.getType();
+
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private volatile int networkVersion = JSON_VERSION;
+
+    /**
+     * Encodes a message in the newest version every live proxy understands.
+     */
+    public byte[] encode(DataManagerMessage<?> message) {
+        return networkVersion >= BINARY_VERSION ? encodeBinary(message) : encodeJson(message);
+    }
+
+    int getNetworkVersion() {
+        return networkVersion;
+    }
+
+    /**
+     * Returns whether every live proxy understands {@link DataManagerMessage.Action#LEAVE_BATCH}.
+     */
+    boolean canBatch() {
+        return networkVersion >= BATCH_VERSION;
+    }
+
+    /**
+     * Recomputes the version to send from the versions advertised in the {@code data-protocol} hash. Proxies that
+     * advertise nothing predate it and only understand JSON.
+     */
+    void updateNetworkVersion(Collection<String> proxies, Map<String, String> advertised) {
+        int version = SUPPORTED_VERSION;
+        for (String proxy : proxies) {
+            int theirs = JSON_VERSION;
+            String value = advertised.get(proxy);
+            if (value != null) {
+                try {
+                    theirs = Integer.parseInt(value);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            version = Math.min(version, theirs);
+        }
+        networkVersion = version;
+    }
+
+    public static byte[] encodeJson(DataManagerMessage<?> message) {
+        return RedisBungee.getGson().toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeBinary(DataManagerMessage<?> message) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput(64);
+        out.writeByte(MARKER);
+        // Stamped with the version that introduced the action, so a proxy that can't read it says so.
+        out.writeByte(message.getAction() == DataManagerMessage.Action.LEAVE_BATCH ? BATCH_VERSION : BINARY_VERSION);
+        out.writeByte(message.getAction().ordinal());
+        out.writeLong(message.getTarget().getMostSignificantBits());
+        out.writeLong(message.getTarget().getLeastSignificantBits());
+        out.writeUTF(message.getSource());
+
+        switch (message.getAction()) {
+            case JOIN:
+                byte[] address = ((DataManager.LoginPayload) message.getPayload()).getAddress().getAddress();
+                out.writeByte(address.length);
+                out.write(address);
+                break;
+            case LEAVE:
+                out.writeLong(((DataManager.LogoutPayload) message.getPayload()).getTimestamp());
+                break;
+            case SERVER_CHANGE:
+                DataManager.ServerChangePayload payload = (DataManager.ServerChangePayload) message.getPayload();
+                out.writeUTF(payload.getServer());
+                out.writeBoolean(payload.getOldServer() != null);
+                if (payload.getOldServer() != null)
+                    out.writeUTF(payload.getOldServer());
+                break;
+            case LEAVE_BATCH:
+                DataManager.BatchLogoutPayload batch = (DataManager.BatchLogoutPayload) message.getPayload();
+                out.writeLong(batch.getTimestamp());
+                out.writeInt(batch.getPlayers().size());
+                for (UUID player : batch.getPlayers()) {
+                    out.writeLong(player.getMostSignificantBits());
+                    out.writeLong(player.getLeastSignificantBits());
+                }
+                break;
+        }
+
+        return out.toByteArray();
+    }
+
+    public static DataManagerMessage<?> decode(byte[] data) {
+        if (data.length > 0 && data[0] == MARKER)
+            return decodeBinary(data);
+        return decodeJson(new String(data, StandardCharsets.UTF_8));
+    }
+
+    private static DataManagerMessage<?> decodeJson(String message) {
+        // Partially deserialize the message so we can look at the action
+        JsonObject jsonObject = new JsonParser().parse(message).getAsJsonObject();
+        DataManagerMessage.Action action = DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
+
+        switch (action) {
+            case JOIN:
+                return RedisBungee.getGson().fromJson(jsonObject, JOIN_TYPE);
+            case LEAVE:
+                return RedisBungee.getGson().fromJson(jsonObject, LEAVE_TYPE);
+            case SERVER_CHANGE:
+                return RedisBungee.getGson().fromJson(jsonObject, SERVER_CHANGE_TYPE);
+            case LEAVE_BATCH:
+                return RedisBungee.getGson().fromJson(jsonObject, LEAVE_BATCH_TYPE);
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+
+    private static DataManagerMessage<?> decodeBinary(byte[] data) {
+        ByteArrayDataInput in = ByteStreams.newDataInput(data, 1);
+        int version = in.readUnsignedByte();
+        if (version < BINARY_VERSION || version > SUPPORTED_VERSION)
+            throw new IllegalArgumentException("Unsupported data protocol version " + version);
+
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= DataManagerMessage.Action.values().length)
+            throw new IllegalArgumentException("Unknown action " + ordinal + " in version " + version + " message");
+        DataManagerMessage.Action action = DataManagerMessage.Action.values()[ordinal];
+        UUID target = new UUID(in.readLong(), in.readLong());
+        String source = INTERNER.intern(in.readUTF());
+
+        switch (action) {
+            case JOIN:
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                try {
+                    return new DataManagerMessage<>(target, source, action, new DataManager.LoginPayload(InetAddress.getByAddress(address)));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Invalid address in JOIN message", e);
+                }
+            case LEAVE:
+                return new DataManagerMessage<>(target, source, action, new DataManager.LogoutPayload(in.readLong()));
+            case SERVER_CHANGE:
+                String server = INTERNER.intern(in.readUTF());
+                String oldServer = in.readBoolean() ? INTERNER.intern(in.readUTF()) : null;
+                return new DataManagerMessage<>(target, source, action, new DataManager.ServerChangePayload(server, oldServer));
+            case LEAVE_BATCH:
+                long timestamp = in.readLong();
+                UUID[] players = new UUID[in.readInt()];
+                for (int i = 0; i < players.length; i++) {
+                    players[i] = new UUID(in.readLong(), in.readLong());
+                }
+                return new DataManagerMessage<>(target, source, action, new DataManager.BatchLogoutPayload(Arrays.asList(players), timestamp));
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import com.imaginarycode.minecraft.redisbungee.util.MaintenanceLeader;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import lombok.Getter;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Makes sure this proxy's player set in Redis matches the players actually connected to it, and, on the
+ * {@link MaintenanceLeader}, cleans up after proxies that have stopped sending heartbeats.
+ * <p>
+ * A pass starts about once a minute, at a slightly random time so that proxies started together drift apart. It walks the set with SSCAN, a few milliseconds every second, so a large set never
+ * keeps Redis busy for long. Players in the set but not here are checked against every other proxy in one script
+ * call per chunk, and the fixes for a chunk go out in one pipeline. Players here but missing from the set are added
+ * back when the pass ends.
+ *
+ * @since 0.5
+ */
+class IntegrityReconciler implements Runnable {
+    private static final long PASS_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final long PASS_JITTER = TimeUnit.SECONDS.toMillis(15);
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int SCAN_COUNT = 500;
+
+    private final RedisBungee plugin;
+    private final LuaManager.Script suspectsScript;
+    private final ScanParams scanParams = new ScanParams().count(SCAN_COUNT);
+    // Only touched from run(), which the executor never runs twice at once.
+    private String cursor;
+    private long passStarted;
+    private long nextPass;
+    private long passBusyNanos;
+    private int passRepaired;
+    private Set<String> seen;
+    private Set<String> localAtStart;
+    @Getter
+    private volatile long lastPassMillis;
+    @Getter
+    private volatile long lastPassBusyMillis;
+    @Getter
+    private volatile int lastPassRepaired;
+    @Getter
+    private volatile long totalRepaired;
+
+    IntegrityReconciler(RedisBungee plugin, LuaManager.Script suspectsScript) {
+        this.plugin = plugin;
+        this.suspectsScript = suspectsScript;
+    }
+
+    @Override
+    public void run() {
+        // Our set belongs to whichever instance has claimed our ID since.
+        if (plugin.isSuperseded())
+            return;
+        long start = System.nanoTime();
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            if (cursor == null) {
+                if (System.currentTimeMillis() < nextPass)
+                    return;
+                startPass(jedis);
+            }
+
+            String key = RedisKeys.proxyPlayers(RedisBungee.getConfiguration().getServerId());
+            long deadline = start + SLICE_NANOS;
+            do {
+                ScanResult<String> result = jedis.sscan(key, cursor, scanParams);
+                cursor = result.getStringCursor();
+                check(jedis, result.getResult());
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START) && System.nanoTime() < deadline);
+
+            if (cursor.equals(ScanParams.SCAN_POINTER_START))
+                finishPass(jedis);
+        } catch (Throwable e) {
+            plugin.getLogger().log(Level.SEVERE, "无法修复已存储的玩家数据", e);
+            cursor = null;
+        } finally {
+            passBusyNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void startPass(Jedis jedis) {
+        passStarted = System.currentTimeMillis();
+        nextPass = passStarted + PASS_INTERVAL + ThreadLocalRandom.current().nextLong(PASS_JITTER);
+        passBusyNanos = 0;
+        passRepaired = 0;
+        seen = new HashSet<>();
+        localAtStart = plugin.getLocalPlayersAsUuidStrings();
+        cursor = ScanParams.SCAN_POINTER_START;
+
+        // Clean up lagged players. This only needs doing once for the whole network.
+        MaintenanceLeader leader = plugin.getMaintenanceLeader();
+        if (!leader.isLeader())
+            return;
+        for (String s : plugin.getCurrentServerIds(false, true)) {
+            int cleaned = plugin.getPlayerCleaner().cleanUp(s, MaintenanceLeader.LEASE, leader.getFence(), jedis);
+            if (cleaned == -1) {
+                plugin.getLogger().warning("本代理已不再负责全网维护任务, 停止清理延迟较大的代理");
+                return;
+            }
+            if (cleaned > 0)
+                plugin.getLogger().info("已清理延迟较大的代理" + s + " (" + cleaned + "名玩家)");
+        }
+    }
+
+    /**
+     * Checks a chunk of our player set, removing the players who aren't connected here.
+     */
+    private void check(Jedis jedis, List<String> members) {
+        List<String> suspects = new ArrayList<>();
+        for (String member : members) {
+            seen.add(member);
+            if (plugin.getProxy().getPlayer(UUID.fromString(member)) == null)
+                suspects.add(member);
+        }
+        if (suspects.isEmpty())
+            return;
+
+        String ourId = RedisBungee.getConfiguration().getServerId();
+        List<String> keys = new ArrayList<>();
+        for (String proxyId : plugin.getServerIds()) {
+            if (!proxyId.equals(ourId))
+                keys.add(RedisKeys.proxyPlayers(proxyId));
+        }
+        for (String suspect : suspects)
+            keys.add(RedisKeys.player(suspect));
+        List<?> result = (List<?>) suspectsScript.eval(jedis, keys, suspects);
+        List<?> elsewhere = (List<?>) result.get(0);
+        List<?> orphans = (List<?>) result.get(1);
+
+        Pipeline pipeline = jedis.pipelined();
+        Map<String, Long> left = new HashMap<>();
+        for (Object member : elsewhere) {
+            // Just clean up the set.
+            RedisUtil.updateProxyPlayers(ourId, false, (String) member, pipeline);
+            plugin.getLogger().warning("在本地未找到玩家，因为玩家已经连接到另一个代理: " + member);
+            passRepaired++;
+        }
+        for (int i = 0; i < orphans.size(); i += 2) {
+            String member = (String) orphans.get(i);
+            // They may have joined since the chunk was read.
+            if (plugin.getProxy().getPlayer(UUID.fromString(member)) != null)
+                continue;
+            String server = (String) orphans.get(i + 1);
+            left.put(member, RedisUtil.cleanUpPlayer(member, server.isEmpty() ? null : server, pipeline));
+            plugin.getLogger().warning("在本地和全局均未找到玩家: " + member);
+            passRepaired++;
+        }
+        pipeline.sync();
+        for (Map.Entry<String, Long> entry : left.entrySet()) {
+            RedisUtil.announceLeave(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void finishPass(Jedis jedis) {
+        // Players who were here for the whole pass but never came up in the scan are missing from the set. Check
+        // again in case they were added since, then put back the ones that are still missing.
+        List<ProxiedPlayer> unseen = new ArrayList<>();
+        for (String player : localAtStart) {
+            if (seen.contains(player))
+                continue;
+            ProxiedPlayer proxiedPlayer = plugin.getProxy().getPlayer(UUID.fromString(player));
+            if (proxiedPlayer != null)
+                unseen.add(proxiedPlayer);
+        }
+        if (!unseen.isEmpty()) {
+            String key = RedisKeys.proxyPlayers(RedisBungee.getConfiguration().getServerId());
+            List<Response<Boolean>> members = new ArrayList<>(unseen.size());
+            Pipeline pipeline = jedis.pipelined();
+            for (ProxiedPlayer player : unseen) {
+                members.add(pipeline.sismember(key, player.getUniqueId().toString()));
+            }
+            pipeline.sync();
+
+            pipeline = jedis.pipelined();
+            List<ProxiedPlayer> added = new ArrayList<>();
+            for (int i = 0; i < unseen.size(); i++) {
+                if (members.get(i).get())
+                    continue;
+                // Player not online according to Redis but not BungeeCord.
+                plugin.getLogger().warning("玩家" + unseen.get(i).getUniqueId() + "在代理中，但不在Redis内");
+                RedisUtil.createPlayer(unseen.get(i), pipeline);
+                added.add(unseen.get(i));
+                passRepaired++;
+            }
+            pipeline.sync();
+            for (ProxiedPlayer player : added) {
+                RedisUtil.announceJoin(player.getPendingConnection());
+            }
+        }
+
+        // Repair our part of the per-server index in case it has drifted.
+        int indexRepaired = RedisUtil.syncServerIndex(RedisBungee.getConfiguration().getServerId(), new Supplier<Multimap<String, String>>() {
+            @Override
+            public Multimap<String, String> get() {
+                Multimap<String, String> serverToPlayers = HashMultimap.create();
+                for (ProxiedPlayer proxiedPlayer : plugin.getProxy().getPlayers()) {
+                    if (proxiedPlayer.getServer() != null)
+                        serverToPlayers.put(proxiedPlayer.getServer().getInfo().getName(), proxiedPlayer.getUniqueId().toString());
+                }
+                return serverToPlayers;
+            }
+        }, jedis);
+        if (indexRepaired > 0)
+            passRepaired += indexRepaired;
+
+        lastPassMillis = System.currentTimeMillis() - passStarted;
+        lastPassBusyMillis = TimeUnit.NANOSECONDS.toMillis(passBusyNanos);
+        lastPassRepaired = passRepaired;
+        totalRepaired += passRepaired;
+        if (passRepaired > 0)
+            plugin.getLogger().info("完整性检查完成: 扫描了" + seen.size() + "名玩家, 修复了" + passRepaired + "条记录, 耗时" + lastPassMillis + "毫秒");
+        cursor = null;
+        seen = null;
+        localAtStart = null;
+    }
+}
@@ -0,0 +1,136 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Marks every player on a proxy offline at once, for when we shut down or another proxy has stopped sending
+ * heartbeats.
+ * <p>
+ * The proxy's set is read with SSCAN, and each chunk is cleaned up by one script call, so a proxy with thousands of
+ * players takes a handful of round trips rather than several per player. Each chunk is announced with a single
+ * {@link DataManager.DataManagerMessage.Action#LEAVE_BATCH} once every proxy understands it, and with a LEAVE per
+ * player until then. What is left of the proxy is deleted by a second script, which checks the same epoch and fencing
+ * token, so nothing is touched once either has moved on.
+ *
+ * @since 0.5
+ */
+class PlayerCleaner {
+    private static final int CHUNK_SIZE = 500;
+
+    private final RedisBungee plugin;
+    private final LuaManager.Script script;
+    private final LuaManager.Script dropScript;
+    private final ScanParams scanParams = new ScanParams().count(CHUNK_SIZE);
+
+    PlayerCleaner(RedisBungee plugin, LuaManager.Script script, LuaManager.Script dropScript) {
+        this.plugin = plugin;
+        this.script = script;
+        this.dropScript = dropScript;
+    }
+
+    /**
+     * Cleans up every player in {@code proxy}'s set and then deletes it, along with its per-server index, as long as
+     * {@code epoch} is still the proxy's epoch. This is how a proxy cleans up after itself.
+     *
+     * @return the number of players marked offline, or -1 if a newer instance has claimed the proxy's ID
+     */
+    int cleanUp(String proxy, long epoch, Jedis jedis) {
+        return cleanUp(proxy, String.valueOf(epoch), null, "", false, jedis);
+    }
+
+    /**
+     * Cleans up after a proxy that has gone away, and forgets its player count and data protocol, as long as
+     * {@code fence} is still the newest token of the lease called {@code lease}, and the proxy hasn't been started
+     * again in the meantime.
+     *
+     * @return the number of players marked offline, or -1 if the token is out of date or the proxy is back
+     */
+    int cleanUp(String proxy, String lease, long fence, Jedis jedis) {
+        String epoch = jedis.get(RedisKeys.epoch(proxy));
+        return cleanUp(proxy, epoch == null ? "" : epoch, RedisKeys.fence(lease), String.valueOf(fence), true, jedis);
+    }
+
+    /**
+     * @param fenceKey the fencing counter {@code fence} was taken from, or null if the caller holds no lease
+     */
+    private int cleanUp(String proxy, String epoch, String fenceKey, String fence, boolean forget, Jedis jedis) {
+        String key = RedisKeys.proxyPlayers(proxy);
+        long timestamp = System.currentTimeMillis();
+        int cleaned = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.sscan(key, cursor, scanParams);
+            cursor = result.getStringCursor();
+            if (!result.getResult().isEmpty()) {
+                int chunk = cleanUp(proxy, result.getResult(), fenceKey, epoch, fence, timestamp, jedis);
+                if (chunk == -1)
+                    return -1;
+                cleaned += chunk;
+            }
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+        List<String> keys = new ArrayList<>(7);
+        keys.add(RedisKeys.epoch(proxy));
+        keys.add(RedisKeys.proxyPlayers(proxy));
+        keys.add(RedisKeys.proxyPlayersChecksum(proxy));
+        keys.add(RedisKeys.proxyServers(proxy));
+        keys.add(RedisKeys.proxyCounts());
+        keys.add(RedisKeys.dataProtocol());
+        if (fenceKey != null)
+            keys.add(fenceKey);
+        if (dropScript.eval(jedis, keys, ImmutableList.of(proxy, epoch, fence, forget ? "1" : "0",
+                RedisKeys.serverPlayersHead(proxy), RedisKeys.SERVER_PLAYERS_TAIL)) == null)
+            return -1;
+        return cleaned;
+    }
+
+    private int cleanUp(String proxy, List<String> players, String fenceKey, String epoch, String fence, long timestamp, Jedis jedis) {
+        List<String> keys = new ArrayList<>(players.size() + 4);
+        keys.add(RedisKeys.epoch(proxy));
+        keys.add(RedisKeys.proxyPlayers(proxy));
+        keys.add(RedisKeys.proxyPlayersChecksum(proxy));
+        for (String player : players)
+            keys.add(RedisKeys.player(player));
+        if (fenceKey != null)
+            keys.add(fenceKey);
+        List<String> args = new ArrayList<>(players.size() + 6);
+        args.add(proxy);
+        args.add(String.valueOf(timestamp));
+        args.add(epoch);
+        args.add(fence);
+        args.add(RedisKeys.serverPlayersHead(proxy));
+        args.add(RedisKeys.SERVER_PLAYERS_TAIL);
+        args.addAll(players);
+        List<?> cleaned = (List<?>) script.eval(jedis, keys, args);
+        if (cleaned == null)
+            return -1;
+
+        List<UUID> left = new ArrayList<>(cleaned.size());
+        for (Object player : cleaned) {
+            left.add(UUID.fromString((String) player));
+        }
+        if (left.isEmpty())
+            return 0;
+
+        DataManager.BatchLogoutPayload payload = new DataManager.BatchLogoutPayload(left, timestamp);
+        DataMessageCodec codec = RedisBungee.getCodec();
+        if (codec.canBatch()) {
+            RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, codec.encode(new DataManager.DataManagerMessage<>(
+                    DataMessageCodec.NO_TARGET, proxy, DataManager.DataManagerMessage.Action.LEAVE_BATCH, payload)));
+        } else {
+            for (DataManager.DataManagerMessage<DataManager.LogoutPayload> message : payload.split(proxy)) {
+                RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, codec.encode(message));
+            }
+        }
+        return left.size();
+    }
+}
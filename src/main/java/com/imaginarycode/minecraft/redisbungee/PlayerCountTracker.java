@@ -0,0 +1,63 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks how many players are on each proxy so the network player count can be computed without asking Redis.
+ * <p>
+ * Every proxy writes its own count to the {@code proxy-counts} hash alongside its heartbeat. Between heartbeats
+ * the counts of other proxies are adjusted from the JOIN and LEAVE messages they publish.
+ *
+ * @since 0.5
+ */
+class PlayerCountTracker {
+    private final RedisBungee plugin;
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    PlayerCountTracker(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    int getCount() {
+        String self = RedisBungee.getConfiguration().getServerId();
+        int total = plugin.getProxy().getOnlineCount();
+        for (String proxy : plugin.getServerIds()) {
+            if (proxy.equals(self))
+                continue;
+            AtomicInteger count = counts.get(proxy);
+            if (count != null)
+                total += Math.max(0, count.get());
+        }
+        return total;
+    }
+
+    void adjust(String proxy, int delta) {
+        AtomicInteger count = counts.get(proxy);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = counts.putIfAbsent(proxy, created);
+            if (count == null)
+                count = created;
+        }
+        count.addAndGet(delta);
+    }
+
+    /**
+     * Replaces all known counts with those read from the {@code proxy-counts} hash.
+     */
+    void update(Map<String, String> stored) {
+        for (Map.Entry<String, String> entry : stored.entrySet()) {
+            try {
+                int value = Integer.parseInt(entry.getValue());
+                AtomicInteger count = counts.putIfAbsent(entry.getKey(), new AtomicInteger(value));
+                if (count != null)
+                    count.set(value);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        counts.keySet().retainAll(stored.keySet());
+    }
+}
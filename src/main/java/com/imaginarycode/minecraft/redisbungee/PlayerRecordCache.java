@@ -0,0 +1,192 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InetAddresses;
+import com.imaginarycode.minecraft.redisbungee.DataManager.PlayerRecord;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.RedisStorage;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link PlayerRecord}s {@link DataManager} has read from Redis, and the players Redis didn't know.
+ * <p>
+ * Players Redis doesn't know are only remembered briefly, since they may join at any moment. Whenever a player's
+ * record changes, a generation counter for them is bumped, and a read that started before that is never cached: it
+ * may have seen the player as they were before they joined.
+ *
+ * @since 0.5
+ */
+@VisibleForTesting
+public class PlayerRecordCache {
+    private static final String DEFAULT_CACHE_SPEC = "maximumSize=100000,expireAfterWrite=1h";
+    private static final String[] FIELDS = {"server", "proxy", "ip", "online"};
+    // Stands in for a player Redis doesn't know while it is being moved from records to unknownPlayers.
+    private static final PlayerRecord UNKNOWN = new PlayerRecord(null, null, null, -1);
+    // Players share generation counters, so an update to one only costs the others a cache miss.
+    private static final int GENERATION_SLOTS = 1024;
+
+    private final RedisStorage storage;
+    private final Logger logger;
+    private final Cache<UUID, PlayerRecord> records;
+    private final Cache<UUID, Boolean> unknownPlayers;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_SLOTS);
+
+    public PlayerRecordCache(RedisStorage storage, String spec, int unknownPlayerSeconds, Logger logger) {
+        this.storage = storage;
+        this.logger = logger;
+        this.records = createCache(logger, spec);
+        this.unknownPlayers = CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(unknownPlayerSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    private static Cache<UUID, PlayerRecord> createCache(Logger logger, String spec) {
+        try {
+            return CacheBuilder.from(spec).build();
+        } catch (IllegalArgumentException e) {
+            logger.warning("player-cache-spec无效(" + e.getMessage() + "), 将使用默认值: " + DEFAULT_CACHE_SPEC);
+            return CacheBuilder.from(DEFAULT_CACHE_SPEC).build();
+        }
+    }
+
+    /**
+     * Returns what Redis knows about a player, reading every field in one round trip the first time, or null if
+     * Redis doesn't know them.
+     */
+    public PlayerRecord get(final UUID uuid) throws ExecutionException {
+        if (unknownPlayers.getIfPresent(uuid) != null)
+            return null;
+
+        long generation = generation(uuid);
+        PlayerRecord record = records.get(uuid, new Callable<PlayerRecord>() {
+            @Override
+            public PlayerRecord call() throws Exception {
+                return parseRecord(storage.hmgetStale(RedisKeys.player(uuid.toString()), FIELDS));
+            }
+        });
+        if (record != UNKNOWN)
+            return record;
+        // Loading through records lets concurrent lookups share one read, but the answer can't stay there for long.
+        records.asMap().remove(uuid, UNKNOWN);
+        cacheUnknown(uuid, generation);
+        return null;
+    }
+
+    /**
+     * Returns what Redis knows about many players, with null for those it doesn't know. Cached records are used where
+     * possible, and all the rest are read in one round trip.
+     */
+    public Map<UUID, PlayerRecord> getAll(Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> found = new HashMap<>(uuids.size());
+        List<UUID> misses = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            PlayerRecord record = unknownPlayers.getIfPresent(uuid) != null ? UNKNOWN : records.getIfPresent(uuid);
+            if (record == null)
+                misses.add(uuid);
+            else
+                found.put(uuid, record == UNKNOWN ? null : record);
+        }
+        if (misses.isEmpty())
+            return found;
+
+        List<String> keys = new ArrayList<>(misses.size());
+        long[] missGenerations = new long[misses.size()];
+        for (int i = 0; i < misses.size(); i++) {
+            keys.add(RedisKeys.player(misses.get(i).toString()));
+            missGenerations[i] = generation(misses.get(i));
+        }
+        List<List<String>> responses;
+        try {
+            responses = storage.hmgetStale(keys, FIELDS);
+        } catch (JedisException e) {
+            logger.log(Level.SEVERE, "Unable to get player records", e);
+            throw new RuntimeException("Unable to get records for " + misses.size() + " players", e);
+        }
+
+        for (int i = 0; i < misses.size(); i++) {
+            UUID uuid = misses.get(i);
+            PlayerRecord record = parseRecord(responses.get(i));
+            if (record == UNKNOWN) {
+                cacheUnknown(uuid, missGenerations[i]);
+                found.put(uuid, null);
+            } else {
+                cacheRecord(uuid, record, missGenerations[i]);
+                found.put(uuid, record);
+            }
+        }
+        return found;
+    }
+
+    public PlayerRecord getIfPresent(UUID uuid) {
+        return records.getIfPresent(uuid);
+    }
+
+    /**
+     * Replaces what is known about a player with {@code record}, for when we have heard how it has changed.
+     */
+    public void put(UUID uuid, PlayerRecord record) {
+        generations.incrementAndGet(slot(uuid));
+        unknownPlayers.invalidate(uuid);
+        records.put(uuid, record);
+    }
+
+    /**
+     * Forgets what is known about a player, including any read of them still in progress.
+     */
+    public void invalidate(UUID uuid) {
+        generations.incrementAndGet(slot(uuid));
+        records.invalidate(uuid);
+        unknownPlayers.invalidate(uuid);
+    }
+
+    /**
+     * @return how many players have a record cached
+     */
+    public long size() {
+        return records.size();
+    }
+
+    private void cacheUnknown(UUID uuid, long generation) {
+        if (generation(uuid) != generation)
+            return;
+        unknownPlayers.put(uuid, Boolean.TRUE);
+        // Checked again in case the player changed between the check and the put.
+        if (generation(uuid) != generation)
+            unknownPlayers.invalidate(uuid);
+    }
+
+    private void cacheRecord(UUID uuid, PlayerRecord record, long generation) {
+        if (generation(uuid) != generation)
+            return;
+        records.put(uuid, record);
+        if (generation(uuid) != generation)
+            records.asMap().remove(uuid, record);
+    }
+
+    private long generation(UUID uuid) {
+        return generations.get(slot(uuid));
+    }
+
+    private static int slot(UUID uuid) {
+        return (uuid.hashCode() & Integer.MAX_VALUE) % GENERATION_SLOTS;
+    }
+
+    private static PlayerRecord parseRecord(List<String> fields) {
+        if (fields.get(0) == null && fields.get(1) == null && fields.get(2) == null && fields.get(3) == null)
+            return UNKNOWN;
+        return new PlayerRecord(fields.get(0), fields.get(1),
+                fields.get(2) == null ? null : InetAddresses.forString(fields.get(2)),
+                fields.get(3) == null ? -1 : Long.parseLong(fields.get(3)));
+    }
+}
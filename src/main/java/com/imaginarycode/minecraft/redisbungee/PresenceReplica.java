@@ -0,0 +1,197 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Ints;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory copy of where every player on the network is, used when {@code replica-mode} is enabled.
+ * <p>
+ * The replica is seeded from Redis, kept current from the JOIN, LEAVE and SERVER_CHANGE messages on
+ * {@code redisbungee-data} and periodically reconciled against the size and checksum of each proxy's player set in
+ * Redis.
+ *
+ * @since 0.5
+ */
+class PresenceReplica {
+    private final RedisBungee plugin;
+    private final ConcurrentMap<UUID, Presence> presences = new ConcurrentHashMap<>(1024, 0.75f, 4);
+
+    PresenceReplica(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    Presence get(UUID uuid) {
+        return presences.get(uuid);
+    }
+
+    boolean contains(UUID uuid) {
+        return presences.containsKey(uuid);
+    }
+
+    Set<UUID> getPlayers() {
+        return ImmutableSet.copyOf(presences.keySet());
+    }
+
+    Set<UUID> getPlayersOnProxy(String proxy) {
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (Map.Entry<UUID, Presence> entry : presences.entrySet()) {
+            if (entry.getValue().getProxy().equals(proxy))
+                builder.add(entry.getKey());
+        }
+        return builder.build();
+    }
+
+    Set<UUID> getPlayersOnServer(String server) {
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (Map.Entry<UUID, Presence> entry : presences.entrySet()) {
+            if (server.equals(entry.getValue().getServer()))
+                builder.add(entry.getKey());
+        }
+        return builder.build();
+    }
+
+    Multimap<String, UUID> getServerToPlayers() {
+        ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
+        for (Map.Entry<UUID, Presence> entry : presences.entrySet()) {
+            String server = entry.getValue().getServer();
+            if (server != null)
+                builder.put(server, entry.getKey());
+        }
+        return builder.build();
+    }
+
+    void join(UUID uuid, String proxy, InetAddress address) {
+        while (true) {
+            Presence current = presences.get(uuid);
+            if (current == null) {
+                if (presences.putIfAbsent(uuid, new Presence(proxy, null, address)) == null)
+                    return;
+            } else {
+                // A SERVER_CHANGE for this login may have beaten us here, so keep its server.
+                String server = current.getProxy().equals(proxy) ? current.getServer() : null;
+                if (presences.replace(uuid, current, new Presence(proxy, server, address)))
+                    return;
+            }
+        }
+    }
+
+    void serverChange(UUID uuid, String proxy, String server) {
+        while (true) {
+            Presence current = presences.get(uuid);
+            if (current == null) {
+                if (presences.putIfAbsent(uuid, new Presence(proxy, server, null)) == null)
+                    return;
+            } else if (presences.replace(uuid, current, new Presence(proxy, server, current.getAddress()))) {
+                return;
+            }
+        }
+    }
+
+    void leave(UUID uuid) {
+        presences.remove(uuid);
+    }
+
+    /**
+     * Compares the number of players we have for each proxy, and the XOR of their hashes, against {@code SCARD} of
+     * its set in Redis and the checksum kept alongside it, and reloads any proxy that doesn't match. The count alone
+     * would miss a missed JOIN and a missed LEAVE cancelling out. The first call seeds the replica.
+     */
+    void reconcile() {
+        List<String> proxies = plugin.getServerIds();
+
+        // Forget everyone on proxies that have gone away.
+        Map<String, Integer> localCounts = new HashMap<>();
+        Map<String, Integer> localChecksums = new HashMap<>();
+        for (Iterator<Map.Entry<UUID, Presence>> it = presences.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<UUID, Presence> entry = it.next();
+            String proxy = entry.getValue().getProxy();
+            if (!proxies.contains(proxy)) {
+                it.remove();
+                continue;
+            }
+            Integer count = localCounts.get(proxy);
+            localCounts.put(proxy, count == null ? 1 : count + 1);
+            Integer checksum = localChecksums.get(proxy);
+            localChecksums.put(proxy, (checksum == null ? 0 : checksum) ^ checksum(entry.getKey().toString()));
+        }
+
+        try (Jedis jedis = plugin.getReadResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Long>> remoteCounts = new HashMap<>();
+            Map<String, Response<String>> remoteChecksums = new HashMap<>();
+            for (String proxy : proxies) {
+                remoteCounts.put(proxy, pipeline.scard(RedisKeys.proxyPlayers(proxy)));
+                remoteChecksums.put(proxy, pipeline.get(RedisKeys.proxyPlayersChecksum(proxy)));
+            }
+            pipeline.sync();
+
+            for (Map.Entry<String, Response<Long>> entry : remoteCounts.entrySet()) {
+                String proxy = entry.getKey();
+                Integer local = localCounts.get(proxy);
+                Integer localChecksum = localChecksums.get(proxy);
+                String remoteChecksum = remoteChecksums.get(proxy).get();
+                if (entry.getValue().get() != (local == null ? 0 : local)
+                        || !String.valueOf(localChecksum == null ? 0 : localChecksum).equals(remoteChecksum == null ? "0" : remoteChecksum)) {
+                    reload(jedis, proxy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of a set member that its proxy's checksum is made of: the first 32 bits of its SHA1, as the
+     * scripts compute it.
+     */
+    static int checksum(String member) {
+        return Ints.fromByteArray(Hashing.sha1().hashString(member, StandardCharsets.UTF_8).asBytes());
+    }
+
+    private void reload(Jedis jedis, String proxy) {
+        Set<String> members = jedis.smembers(RedisKeys.proxyPlayers(proxy));
+        Pipeline pipeline = jedis.pipelined();
+        Map<UUID, Response<List<String>>> responses = new HashMap<>();
+        for (String member : members) {
+            try {
+                responses.put(UUID.fromString(member), pipeline.hmget(RedisKeys.player(member), "server", "ip"));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        pipeline.sync();
+
+        for (Iterator<Map.Entry<UUID, Presence>> it = presences.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<UUID, Presence> entry = it.next();
+            if (entry.getValue().getProxy().equals(proxy) && !responses.containsKey(entry.getKey()))
+                it.remove();
+        }
+
+        for (Map.Entry<UUID, Response<List<String>>> entry : responses.entrySet()) {
+            List<String> data = entry.getValue().get();
+            String ip = data.get(1);
+            presences.put(entry.getKey(), new Presence(proxy, data.get(0), ip == null ? null : InetAddresses.forString(ip)));
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class Presence {
+        private final String proxy;
+        private final String server;
+        private final InetAddress address;
+    }
+}
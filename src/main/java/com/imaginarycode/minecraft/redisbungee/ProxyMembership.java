@@ -0,0 +1,196 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Keeps track of which proxies are up, without asking Redis every few seconds.
+ * <p>
+ * Each proxy keeps a {@code proxy:<id>:alive} key alive with its heartbeat, and announces itself on
+ * {@code redisbungee-membership} when it starts and stops, so every other proxy hears about it straight away. A
+ * slower sweep reads the heartbeats and alive keys to catch what the announcements miss: proxies that crashed, and
+ * older versions that don't announce anything. A proxy is up while its alive key exists or its heartbeat is recent.
+ * An announcement heard after a sweep started is newer than what the sweep read, so the sweep leaves that proxy be.
+ * <p>
+ * Heartbeats are stamped with Redis' clock. Rather than asking Redis for the time on every heartbeat, the offset
+ * from our clock is measured with each sweep.
+ *
+ * @since 0.5
+ */
+class ProxyMembership {
+    static final String CHANNEL = "redisbungee-membership";
+    static final long ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int LAG_SECONDS = 30;
+    private static final String JOIN = "join:";
+    private static final String LEAVE = "leave:";
+
+    private final RedisBungee plugin;
+    private final String self;
+    private final Set<String> members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // When each proxy last announced itself joining or leaving, by System.nanoTime(), until a sweep has caught up.
+    private final Map<String, Long> announcedAt = new ConcurrentHashMap<>();
+    private final AtomicInteger nagAboutServers = new AtomicInteger();
+    private volatile List<String> snapshot;
+    private volatile long clockOffset;
+
+    ProxyMembership(RedisBungee plugin, String self) {
+        this.plugin = plugin;
+        this.self = self;
+        this.members.add(self);
+        this.snapshot = ImmutableList.of(self);
+    }
+
+    List<String> getMembers() {
+        return snapshot;
+    }
+
+    boolean isMember(String proxy) {
+        return members.contains(proxy);
+    }
+
+    /**
+     * Returns Redis' clock, in seconds, as estimated from ours.
+     */
+    long getRedisTime() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + clockOffset);
+    }
+
+    long getClockOffset() {
+        return clockOffset;
+    }
+
+    void estimateClockOffset(Jedis jedis) {
+        long before = System.currentTimeMillis();
+        List<String> time = jedis.time();
+        long after = System.currentTimeMillis();
+        long redisMillis = Long.parseLong(time.get(0)) * 1000 + Long.parseLong(time.get(1)) / 1000;
+        clockOffset = redisMillis - (before + after) / 2;
+    }
+
+    /**
+     * Queues our heartbeat and refreshes our alive key.
+     */
+    void beat(Pipeline pipeline) {
+        pipeline.hset(RedisKeys.heartbeats(), self, String.valueOf(getRedisTime()));
+        pipeline.psetex(RedisKeys.proxyAlive(self), ALIVE_MILLIS, "1");
+    }
+
+    void announceJoin() {
+        RedisBungee.getPublisher().publish(CHANNEL, JOIN + self);
+    }
+
+    /**
+     * Tells the other proxies we are going, and takes our alive key away so the sweep agrees.
+     */
+    void announceLeave(Jedis jedis) {
+        jedis.del(RedisKeys.proxyAlive(self));
+        RedisBungee.getPublisher().publish(CHANNEL, LEAVE + self);
+    }
+
+    void onMessage(String message) {
+        if (message.startsWith(JOIN)) {
+            String proxy = message.substring(JOIN.length());
+            announcedAt.put(proxy, System.nanoTime());
+            if (members.add(proxy))
+                publish();
+        } else if (message.startsWith(LEAVE)) {
+            String proxy = message.substring(LEAVE.length());
+            if (proxy.equals(self))
+                return;
+            announcedAt.put(proxy, System.nanoTime());
+            if (members.remove(proxy))
+                publish();
+        }
+    }
+
+    /**
+     * Replaces the members with the proxies that are up according to Redis, except for those that have announced
+     * themselves since the sweep started.
+     */
+    void sweep() {
+        long started = System.nanoTime();
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            estimateClockOffset(jedis);
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法获取Redis服务器时间", e);
+        }
+        Set<String> up = new HashSet<>(fetch(true, false));
+        up.add(self);
+
+        Set<String> proxies = new HashSet<>(members);
+        proxies.addAll(up);
+        for (String proxy : proxies) {
+            Long announced = announcedAt.get(proxy);
+            if (announced != null && announced - started >= 0)
+                continue;
+            if (up.contains(proxy))
+                members.add(proxy);
+            else
+                members.remove(proxy);
+        }
+        // This sweep has seen everything announced before it started.
+        for (Iterator<Long> it = announcedAt.values().iterator(); it.hasNext(); ) {
+            if (it.next() - started < 0)
+                it.remove();
+        }
+        publish();
+    }
+
+    /**
+     * Reads the proxies that are up, or with {@code lagged}, those whose heartbeat has stopped and whose alive key has
+     * expired.
+     */
+    List<String> fetch(boolean nag, boolean lagged) {
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            long time = getRedisTime();
+            int nagTime = 0;
+            if (nag) {
+                nagTime = nagAboutServers.decrementAndGet();
+                if (nagTime <= 0) {
+                    nagAboutServers.set(10);
+                }
+            }
+            Map<String, String> heartbeats = jedis.hgetAll(RedisKeys.heartbeats());
+            Map<String, Response<Boolean>> alive = new HashMap<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String proxy : heartbeats.keySet()) {
+                alive.put(proxy, pipeline.exists(RedisKeys.proxyAlive(proxy)));
+            }
+            pipeline.sync();
+
+            ImmutableList.Builder<String> servers = ImmutableList.builder();
+            for (Map.Entry<String, String> entry : heartbeats.entrySet()) {
+                try {
+                    long stamp = Long.parseLong(entry.getValue());
+                    boolean up = alive.get(entry.getKey()).get() || time <= stamp + LAG_SECONDS;
+                    if (lagged ? !up : up)
+                        servers.add(entry.getKey());
+                    else if (nag && nagTime <= 0) {
+                        plugin.getLogger().severe(entry.getKey() + "已延迟" + (time - stamp) + "秒! (服务器时间是否未同步或已关闭?)");
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            return servers.build();
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法获取服务器ID", e);
+            return lagged ? Collections.<String>emptyList() : Collections.singletonList(self);
+        }
+    }
+
+    private void publish() {
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        snapshot = ImmutableList.copyOf(sorted);
+    }
+}
@@ -1,13 +1,20 @@
 package com.imaginarycode.minecraft.redisbungee;
 
+import com.google.common.base.Supplier;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.*;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import com.imaginarycode.minecraft.redisbungee.util.*;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.DiskUUIDCache;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.MojangLookupService;
 import com.imaginarycode.minecraft.redisbungee.util.uuid.NameFetcher;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDCacheSweeper;
 import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDFetcher;
 import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDTranslator;
 import com.squareup.okhttp.Dispatcher;
@@ -25,12 +32,13 @@ import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.*;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -46,25 +54,66 @@ public final class RedisBungee extends Plugin {
     private static RedisBungeeAPI api;
     @Getter(AccessLevel.PACKAGE)
     private static PubSubListener psl = null;
-    @Getter
-    private JedisPool pool;
+    @Getter(AccessLevel.PACKAGE)
+    private static final DataMessageCodec codec = new DataMessageCodec();
+    @Getter(AccessLevel.PACKAGE)
+    private static RedisPublisher publisher;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script proxyPlayersScript;
+    @Getter(AccessLevel.PACKAGE)
+    private OrderedDispatcher dispatcher;
+    @Getter(AccessLevel.PACKAGE)
+    private ListeningExecutorService queryExecutor;
+    private ScheduledExecutorService mojangExecutor;
+    private volatile JedisStorage storage;
+    private SentinelResolver sentinelResolver;
+    private boolean readReplicasFromSentinel;
     @Getter
     private UUIDTranslator uuidTranslator;
     @Getter(AccessLevel.PACKAGE)
     private static RedisBungeeConfiguration configuration;
     @Getter
     private DataManager dataManager;
+    @Getter(AccessLevel.PACKAGE)
+    private PresenceReplica replica;
     @Getter
     private static OkHttpClient httpClient;
-    private volatile List<String> serverIds;
-    private final AtomicInteger nagAboutServers = new AtomicInteger();
-    private final AtomicInteger globalPlayerCount = new AtomicInteger();
+    @Getter(AccessLevel.PACKAGE)
+    private ProxyMembership membership;
+    @Getter(AccessLevel.PACKAGE)
+    private final PlayerCountTracker countTracker = new PlayerCountTracker(this);
     private Future<?> integrityCheck;
     private Future<?> heartbeatTask;
+    private Future<?> membershipTask;
+    private Future<?> replicaTask;
+    private Future<?> topologyTask;
+    private Future<?> sweepTask;
+    private Future<?> diskCacheTask;
+    private RedisLease instanceLease;
+    @Getter(AccessLevel.PACKAGE)
+    private volatile boolean superseded;
     private boolean usingLua;
     private LuaManager.Script serverToPlayersScript;
-    private LuaManager.Script getPlayerCountScript;
+    private LuaManager.Script serverPlayerCountsScript;
+    private LuaManager.Script tokenBucketScript;
+    private LuaManager.Script leaseScript;
+    private LuaManager.Script hdelIfEqualScript;
+    private LuaManager.Script integritySuspectsScript;
+    private LuaManager.Script cleanupPlayersScript;
+    private LuaManager.Script dropProxyScript;
+    @Getter(AccessLevel.PACKAGE)
+    private PlayerCleaner playerCleaner;
+    @Getter(AccessLevel.PACKAGE)
+    private IntegrityReconciler integrityReconciler;
+    @Getter
+    private UUIDCacheSweeper uuidCacheSweeper;
+    @Getter
+    private MaintenanceLeader maintenanceLeader;
+    @Getter(AccessLevel.PACKAGE)
+    private LuaManager.Script loginScript;
 
+    private static final long INSTANCE_LEASE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long LEGACY_HEARTBEAT_SECONDS = 20;
     private static final Object SERVER_TO_PLAYERS_KEY = new Object();
     private final Cache<Object, Multimap<String, UUID>> serverToPlayersCache = CacheBuilder.newBuilder()
             .expireAfterWrite(5, TimeUnit.SECONDS)
@@ -84,43 +133,65 @@ public final class RedisBungee extends Plugin {
     }
 
     final List<String> getServerIds() {
-        return serverIds;
+        return membership.getMembers();
     }
 
-    private List<String> getCurrentServerIds(boolean nag, boolean lagged) {
-        try (Jedis jedis = pool.getResource()) {
-            long time = getRedisTime(jedis.time());
-            int nagTime = 0;
-            if (nag) {
-                nagTime = nagAboutServers.decrementAndGet();
-                if (nagTime <= 0) {
-                    nagAboutServers.set(10);
-                }
-            }
-            ImmutableList.Builder<String> servers = ImmutableList.builder();
-            Map<String, String> heartbeats = jedis.hgetAll("heartbeats");
-            for (Map.Entry<String, String> entry : heartbeats.entrySet()) {
-                try {
-                    long stamp = Long.parseLong(entry.getValue());
-                    if (lagged ? time >= stamp + 30 : time <= stamp + 30)
-                        servers.add(entry.getKey());
-                    else if (nag && nagTime <= 0) {
-                        getLogger().severe(entry.getKey() + "已延迟" + (time - stamp) + "秒! (服务器时间是否未同步或已关闭?)");
-                    }
-                } catch (NumberFormatException ignored) {
-                }
-            }
-            return servers.build();
-        } catch (JedisConnectionException e) {
-            getLogger().log(Level.SEVERE, "无法获取服务器ID", e);
-            return Collections.singletonList(configuration.getServerId());
+    /**
+     * Returns where our data is kept.
+     */
+    public RedisStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the pool of connections to the primary, for code that needs a connection of its own.
+     */
+    public JedisPool getPool() {
+        JedisStorage storage = this.storage;
+        return storage == null ? null : storage.getPool();
+    }
+
+    /**
+     * Returns a connection for a read that tolerates slightly stale data. Reads are spread over the configured read
+     * replicas, and go to the primary when there are none or the chosen one is unreachable. Never write through
+     * this connection.
+     */
+    public Jedis getReadResource() {
+        return storage.getReadResource();
+    }
+
+    int getReadPoolCount() {
+        return storage.getReadPoolCount();
+    }
+
+    /**
+     * Asks the Sentinels where the master and its replicas are, and reconnects if the master has moved.
+     */
+    private void checkTopology() {
+        HostAndPort master = sentinelResolver.getMaster();
+        HostAndPort old = storage.getPrimaryAddress();
+        if (storage.switchPrimary(master)) {
+            getLogger().warning("Redis主节点已从" + old + "切换到" + master + "，正在重新连接...");
+            // Both hold a connection of their own, which may still point at the old master.
+            publisher.reconnect();
+            if (psl != null)
+                psl.reconnect();
         }
+        if (readReplicasFromSentinel)
+            storage.updateReadPools(sentinelResolver.getReplicas());
+    }
+
+    List<String> getCurrentServerIds(boolean nag, boolean lagged) {
+        return membership.fetch(nag, lagged);
     }
 
     public Set<UUID> getPlayersOnProxy(String server) {
-        checkArgument(getServerIds().contains(server), server + "不是有效的代理ID");
-        try (Jedis jedis = pool.getResource()) {
-            Set<String> users = jedis.smembers("proxy:" + server + ":usersOnline");
+        checkArgument(membership.isMember(server), server + "不是有效的代理ID");
+        if (replica != null) {
+            return replica.getPlayersOnProxy(server);
+        }
+        try (Jedis jedis = getReadResource()) {
+            Set<String> users = jedis.smembers(RedisKeys.proxyPlayers(server));
             ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
             for (String user : users) {
                 builder.add(UUID.fromString(user));
@@ -130,11 +201,17 @@ public final class RedisBungee extends Plugin {
     }
 
     final Multimap<String, UUID> serversToPlayers() {
+        if (replica != null) {
+            return replica.getServerToPlayers();
+        }
         try {
             return serverToPlayersCache.get(SERVER_TO_PLAYERS_KEY, new Callable<Multimap<String, UUID>>() {
                 @Override
                 public Multimap<String, UUID> call() throws Exception {
-                    Collection<String> data = (Collection<String>) serverToPlayersScript.eval(ImmutableList.<String>of(), getServerIds());
+                    List<String> keys = new ArrayList<>();
+                    List<String> args = new ArrayList<>();
+                    addServerIndexParams(keys, args);
+                    Collection<String> data = (Collection<String>) serverToPlayersScript.eval(keys, args);
 
                     ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
                     String key = null;
@@ -156,16 +233,80 @@ public final class RedisBungee extends Plugin {
         }
     }
 
-    final int getCount() {
-        return globalPlayerCount.get();
+    final Set<UUID> getPlayersOnServer(String server) {
+        if (replica != null) {
+            return replica.getPlayersOnServer(server);
+        }
+        List<String> keys = new ArrayList<>();
+        for (String proxy : getServerIds()) {
+            keys.add(RedisKeys.serverPlayers(proxy, server));
+        }
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        if (keys.isEmpty()) {
+            return builder.build();
+        }
+        try (Jedis jedis = getPool().getResource()) {
+            for (String user : jedis.sunion(keys.toArray(new String[keys.size()]))) {
+                try {
+                    builder.add(UUID.fromString(user));
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    final int getPlayerCountOnServer(String server) {
+        if (replica != null) {
+            return replica.getPlayersOnServer(server).size();
+        }
+        try (Jedis jedis = getPool().getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> counts = new ArrayList<>();
+            for (String proxy : getServerIds()) {
+                counts.add(pipeline.scard(RedisKeys.serverPlayers(proxy, server)));
+            }
+            pipeline.sync();
+            int total = 0;
+            for (Response<Long> count : counts) {
+                total += count.get();
+            }
+            return total;
+        }
+    }
+
+    final Multiset<String> getServerPlayerCounts() {
+        if (replica != null) {
+            return replica.getServerToPlayers().keys();
+        }
+        List<String> keys = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        addServerIndexParams(keys, args);
+        List<?> data = (List<?>) serverPlayerCountsScript.eval(keys, args);
+        ImmutableMultiset.Builder<String> builder = ImmutableMultiset.builder();
+        for (int i = 0; i + 1 < data.size(); i += 2) {
+            builder.addCopies((String) data.get(i), ((Long) data.get(i + 1)).intValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Adds the keys and arguments server_to_players.lua and server_player_counts.lua take to read the server index of
+     * every live proxy.
+     */
+    private void addServerIndexParams(List<String> keys, List<String> args) {
+        args.add(RedisKeys.SERVER_PLAYERS_TAIL);
+        for (String proxy : getServerIds()) {
+            keys.add(RedisKeys.proxyServers(proxy));
+            args.add(RedisKeys.serverPlayersHead(proxy));
+        }
     }
 
-    final int getCurrentCount() {
-        Long count = (Long) getPlayerCountScript.eval(ImmutableList.<String>of(), ImmutableList.<String>of());
-        return count.intValue();
+    final int getCount() {
+        return countTracker.getCount();
     }
 
-    private Set<String> getLocalPlayersAsUuidStrings() {
+    Set<String> getLocalPlayersAsUuidStrings() {
         ImmutableSet.Builder<String> builder = ImmutableSet.builder();
         for (ProxiedPlayer player : getProxy().getPlayers()) {
             builder.add(player.getUniqueId().toString());
@@ -174,12 +315,15 @@ public final class RedisBungee extends Plugin {
     }
 
     final Set<UUID> getPlayers() {
+        if (replica != null) {
+            return replica.getPlayers();
+        }
         ImmutableSet.Builder<UUID> setBuilder = ImmutableSet.builder();
-        if (pool != null) {
-            try (Jedis rsc = pool.getResource()) {
+        if (storage != null) {
+            try (Jedis rsc = getPool().getResource()) {
                 List<String> keys = new ArrayList<>();
                 for (String i : getServerIds()) {
-                    keys.add("proxy:" + i + ":usersOnline");
+                    keys.add(RedisKeys.proxyPlayers(i));
                 }
                 if (!keys.isEmpty()) {
                     Set<String> users = rsc.sunion(keys.toArray(new String[keys.size()]));
@@ -202,22 +346,88 @@ public final class RedisBungee extends Plugin {
     }
 
     final void sendProxyCommand(@NonNull String proxyId, @NonNull String command) {
-        checkArgument(getServerIds().contains(proxyId) || proxyId.equals("allservers"), "代理ID无效");
+        checkArgument(membership.isMember(proxyId) || proxyId.equals("allservers"), "代理ID无效");
         sendChannelMessage("redisbungee-" + proxyId, command);
     }
 
     final void sendChannelMessage(String channel, String message) {
-        try (Jedis jedis = pool.getResource()) {
-            jedis.publish(channel, message);
-        } catch (JedisConnectionException e) {
-            // Redis server has disappeared!
-            getLogger().log(Level.SEVERE, "无法与代理池取得连接 - 您的Redis服务器消失了吗?", e);
+        // Goes out with whatever else is being published, but the caller still finds out if it didn't make it.
+        try {
+            publisher.publish(channel, message).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException("无法发布频道消息", e);
+        } catch (ExecutionException | TimeoutException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            getLogger().log(Level.SEVERE, "无法发布频道消息 - 您的Redis服务器消失了吗?", cause);
+            throw new RuntimeException("无法发布频道消息", cause);
+        }
+    }
+
+    /**
+     * Returns the epoch we claimed our server ID with. Scripts that write under our ID check it against
+     * {@code proxy:<id>:epoch}, so once a newer instance has claimed the ID, nothing we write gets through.
+     */
+    long getEpoch() {
+        return instanceLease.getFence();
+    }
+
+    /**
+     * Takes the instance lease for our server ID, which every running instance renews with its heartbeat. If it is
+     * held, either another instance with our ID is running, or the last one crashed less than a lease ago, so we wait
+     * out one lease to see which. Every claim increments the ID's epoch, and whatever the previous epoch left in
+     * Redis is cleaned up once we are running.
+     */
+    private void claimServerId(Jedis jedis) {
+        String serverId = configuration.getServerId();
+        instanceLease = new RedisLease(this, leaseScript, RedisKeys.lease("instance:" + serverId), serverId, RedisKeys.epoch(serverId));
+        File crashFile = new File(getDataFolder(), "restarted_from_crash.txt");
+        if (crashFile.exists()) {
+            // Still honoured, for when the other instance is known to be gone.
+            crashFile.delete();
+            jedis.del(instanceLease.getKey());
+        } else if (jedis.get(RedisKeys.epoch(serverId)) == null) {
+            // Versions without the lease leave only a heartbeat, and never an epoch. Fall back to refusing while it
+            // is recent, as they did.
+            String stamp = jedis.hget(RedisKeys.heartbeats(), serverId);
+            if (stamp != null && Long.parseLong(jedis.time().get(0)) < Long.parseLong(stamp) + LEGACY_HEARTBEAT_SECONDS)
+                throw duplicateServerId();
         }
+
+        long deadline = System.currentTimeMillis() + INSTANCE_LEASE_MILLIS + TimeUnit.SECONDS.toMillis(1);
+        boolean waited = false;
+        while (!instanceLease.acquire(INSTANCE_LEASE_MILLIS)) {
+            if (System.currentTimeMillis() > deadline)
+                throw duplicateServerId();
+            if (!waited) {
+                getLogger().info("代理ID " + serverId + " 的实例租约仍被持有, 正在等待它过期...");
+                waited = true;
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("等待实例租约时被中断", e);
+            }
+        }
+        getLogger().info("已获得代理ID " + serverId + " 的实例租约 (第" + instanceLease.getFence() + "代)");
+    }
+
+    private RuntimeException duplicateServerId() {
+        getLogger().severe("你可能尝试运行两个ID相同的BungeeCord实例，另一个相同ID的实例已在运行.");
+        getLogger().severe("为确保数据一致，RedisBungee现在将禁用.");
+        getLogger().severe("如果您确定另一个实例已经关闭，请在插件目录创建名为restarted_from_crash.txt的文件，之后RedisBungee将不会再检查此项");
+        return new RuntimeException("可能具有两个相同服务器ID的实例！");
     }
 
-    private long getRedisTime(List<String> timeRes) {
-        return Long.parseLong(timeRes.get(0));
+    /**
+     * Stops everything we write under our server ID, once the heartbeat finds a newer instance holding it.
+     */
+    private void supersede() {
+        superseded = true;
+        getLogger().severe("另一个ID相同的实例已接管代理ID " + configuration.getServerId() + " - 请检查是否有两个实例使用了相同的ID!");
+        getLogger().severe("本实例将不再向Redis写入此ID下的任何数据, 请尽快关闭它.");
+        maintenanceLeader.stop();
     }
 
     @Override
@@ -239,8 +449,8 @@ public final class RedisBungee extends Plugin {
         } catch (JedisConnectionException e) {
             throw new RuntimeException("无法连接到Redis服务器", e);
         }
-        if (pool != null) {
-            try (Jedis tmpRsc = pool.getResource()) {
+        if (storage != null) {
+            try (Jedis tmpRsc = getPool().getResource()) {
                 // This is more portable than INFO <section>
                 String info = tmpRsc.info();
                 for (String s : info.split("\r\n")) {
@@ -250,42 +460,152 @@ public final class RedisBungee extends Plugin {
                             getLogger().warning("您的Redis服务器版本(" + version + ")低于2.6. RedisBungee需要更高版本的Redis");
                             throw new RuntimeException("检测到不受支持的Redis版本");
                         } else {
-                            LuaManager manager = new LuaManager(this);
+                            LuaManager manager = new LuaManager(storage);
                             serverToPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/server_to_players.lua")));
-                            getPlayerCountScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/get_player_count.lua")));
+                            serverPlayerCountsScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/server_player_counts.lua")));
+                            loginScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/login.lua")));
+                            tokenBucketScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/token_bucket.lua")));
+                            leaseScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/lease.lua")));
+                            hdelIfEqualScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/hdel_if_equal.lua")));
+                            integritySuspectsScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/integrity_suspects.lua")));
+                            cleanupPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/cleanup_players.lua")));
+                            dropProxyScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/drop_proxy.lua")));
+                            proxyPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/proxy_players.lua")));
                         }
                         break;
                     }
                 }
+                if (info.contains("cluster_enabled:1") && !RedisKeys.isSlotLocal()) {
+                    getLogger().severe("您的Redis服务器运行在集群模式下，但redis-key-prefix中没有哈希标签(例如\"{redisbungee}:\").");
+                    getLogger().severe("RedisBungee需要把所有键放在同一个哈希槽中才能在集群上运行.");
+                    throw new RuntimeException("Redis集群需要带哈希标签的键前缀");
+                }
 
-                tmpRsc.hset("heartbeats", configuration.getServerId(), tmpRsc.time().get(0));
-
-                long uuidCacheSize = tmpRsc.hlen("uuid-cache");
-                if (uuidCacheSize > 750000) {
-                    getLogger().info("似乎您的UUID缓存很大! 最好尽快使用此插件: https://www.spigotmc.org/resources/redisbungeecleaner.8505/");
+                claimServerId(tmpRsc);
+                membership = new ProxyMembership(this, configuration.getServerId());
+                membership.estimateClockOffset(tmpRsc);
+                Pipeline pipeline = tmpRsc.pipelined();
+                membership.beat(pipeline);
+                pipeline.sync();
+                tmpRsc.hset(RedisKeys.dataProtocol(), configuration.getServerId(), String.valueOf(DataMessageCodec.SUPPORTED_VERSION));
+
+                long legacyUuidCacheSize = tmpRsc.hlen(RedisKeys.uuidCache());
+                if (legacyUuidCacheSize > 0) {
+                    getLogger().info("uuid-cache中有" + legacyUuidCacheSize + "条旧格式的记录, 它们会在后台逐步迁移到新的存储格式.");
                 }
             }
-            serverIds = getCurrentServerIds(true, false);
-            uuidTranslator = new UUIDTranslator(this);
+            membership.sweep();
+            playerCleaner = new PlayerCleaner(this, cleanupPlayersScript, dropProxyScript);
+            publisher = new RedisPublisher(this);
+            publisher.start();
+            membership.announceJoin();
+            // Nobody can have joined through us yet, so anyone in our set was left there by an earlier epoch.
+            try (Jedis tmpRsc = getPool().getResource()) {
+                int reaped = playerCleaner.cleanUp(configuration.getServerId(), getEpoch(), tmpRsc);
+                if (reaped > 0)
+                    getLogger().info("已清理上一个实例留下的" + reaped + "名玩家");
+            }
+            // Mojang allows about 600 requests every ten minutes from one address, and the whole network shares the budget.
+            int mojangRequestsPerMinute = configuration.getMojangRequestsPerMinute();
+            RedisTokenBucket mojangBucket = new RedisTokenBucket(this, tokenBucketScript, RedisKeys.mojangRateLimit(),
+                    mojangRequestsPerMinute, mojangRequestsPerMinute / 60.0);
+            final DiskUUIDCache diskCache = openDiskCache();
+            // Mojang requests get threads of their own. Commands wait on them from the shared pool, so if the requests
+            // needed that pool too, enough slow lookups at once would leave none of them a thread to finish on.
+            mojangExecutor = Executors.newScheduledThreadPool(4,
+                    new ThreadFactoryBuilder().setNameFormat("RedisBungee Mojang Thread #%d").setDaemon(true).build());
+            uuidTranslator = new UUIDTranslator(this, new MojangLookupService(mojangExecutor, 50, mojangBucket,
+                    new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(30))), diskCache);
+            if (diskCache != null) {
+                diskCacheTask = service.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            diskCache.flush();
+                        } catch (IOException e) {
+                            getLogger().log(Level.WARNING, "无法写入本地UUID缓存文件", e);
+                        }
+                        try {
+                            if (diskCache.needsCompaction())
+                                diskCache.compact();
+                        } catch (IOException e) {
+                            getLogger().log(Level.WARNING, "无法压缩本地UUID缓存文件", e);
+                        }
+                    }
+                }, 5, 5, TimeUnit.SECONDS);
+            }
+            maintenanceLeader = new MaintenanceLeader(this, leaseScript, configuration.getServerId());
+            // The leader migrates and clears expired entries out of uuid-cache, a few milliseconds every second.
+            uuidCacheSweeper = new UUIDCacheSweeper(this, maintenanceLeader, hdelIfEqualScript);
+            sweepTask = service.scheduleWithFixedDelay(uuidCacheSweeper, 10, 1, TimeUnit.SECONDS);
             heartbeatTask = service.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
-                    try (Jedis rsc = pool.getResource()) {
-                        long redisTime = getRedisTime(rsc.time());
-                        rsc.hset("heartbeats", configuration.getServerId(), String.valueOf(redisTime));
+                    if (superseded)
+                        return;
+                    try {
+                        if (!instanceLease.acquire(INSTANCE_LEASE_MILLIS)) {
+                            supersede();
+                            return;
+                        }
+                    } catch (JedisException e) {
+                        getLogger().log(Level.WARNING, "无法续期实例租约", e);
+                    }
+                    try (Jedis rsc = getPool().getResource()) {
+                        Pipeline pipeline = rsc.pipelined();
+                        membership.beat(pipeline);
+                        pipeline.hset(RedisKeys.proxyCounts(), configuration.getServerId(), String.valueOf(getProxy().getOnlineCount()));
+                        // Advertised again with every beat, since the leader drops it for proxies it thinks have gone.
+                        pipeline.hset(RedisKeys.dataProtocol(), configuration.getServerId(), String.valueOf(DataMessageCodec.SUPPORTED_VERSION));
+                        Response<Map<String, String>> counts = pipeline.hgetAll(RedisKeys.proxyCounts());
+                        Response<Map<String, String>> protocols = pipeline.hgetAll(RedisKeys.dataProtocol());
+                        pipeline.sync();
+                        countTracker.update(counts.get());
+                        codec.updateNetworkVersion(getServerIds(), protocols.get());
                     } catch (JedisConnectionException e) {
                         // Redis server has disappeared!
                         getLogger().log(Level.SEVERE, "无法更新心跳包 - 您的Redis服务器消失了吗?", e);
                         return;
                     }
+                    maintenanceLeader.renew();
+                }
+            }, 0, 3, TimeUnit.SECONDS);
+            // Proxies announce themselves as they come and go, so this only has to catch the ones that crash.
+            membershipTask = service.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        serverIds = getCurrentServerIds(true, false);
-                        globalPlayerCount.set(getCurrentCount());
+                        membership.sweep();
                     } catch (Throwable e) {
                         getLogger().log(Level.SEVERE, "无法更新数据 - 您的Redis服务器消失了吗?", e);
                     }
                 }
-            }, 0, 3, TimeUnit.SECONDS);
+            }, 15, 15, TimeUnit.SECONDS);
+            if (configuration.isReplicaMode()) {
+                replica = new PresenceReplica(this);
+                replicaTask = service.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            replica.reconcile();
+                        } catch (Throwable e) {
+                            getLogger().log(Level.SEVERE, "无法校验玩家位置副本", e);
+                        }
+                    }
+                }, 0, 30, TimeUnit.SECONDS);
+            }
+            if (sentinelResolver != null) {
+                topologyTask = service.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            checkTopology();
+                        } catch (Throwable e) {
+                            getLogger().log(Level.SEVERE, "无法从哨兵获取Redis主节点", e);
+                        }
+                    }
+                }, 5, 5, TimeUnit.SECONDS);
+            }
             dataManager = new DataManager(this);
             if (configuration.isRegisterBungeeCommands()) {
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.GlistCommand(this));
@@ -299,74 +619,18 @@ public final class RedisBungee extends Plugin {
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PlayerProxyCommand(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PlistCommand(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.DebugCommand(this));
+            // Asynchronous API queries get their own threads, no more than there are connections for them to use.
+            queryExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(configuration.getMaxRedisConnections(),
+                    new ThreadFactoryBuilder().setNameFormat("RedisBungee Query Thread #%d").setDaemon(true).build()));
             api = new RedisBungeeAPI(this);
             getProxy().getPluginManager().registerListener(this, new RedisBungeeListener(this, configuration.getExemptAddresses()));
             getProxy().getPluginManager().registerListener(this, dataManager);
+            dispatcher = new OrderedDispatcher("RedisBungee PubSub Dispatcher", 4, 1024, getLogger());
             psl = new PubSubListener();
             getProxy().getScheduler().runAsync(this, psl);
-            integrityCheck = service.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try (Jedis tmpRsc = pool.getResource()) {
-                        Set<String> players = getLocalPlayersAsUuidStrings();
-                        Set<String> playersInRedis = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                        List<String> lagged = getCurrentServerIds(false, true);
-
-                        // Clean up lagged players.
-                        for (String s : lagged) {
-                            Set<String> laggedPlayers = tmpRsc.smembers("proxy:" + s + ":usersOnline");
-                            tmpRsc.del("proxy:" + s + ":usersOnline");
-                            if (!laggedPlayers.isEmpty()) {
-                                getLogger().info("正在清理延迟较大的代理" + s + " (" + laggedPlayers.size() + "名玩家)...");
-                                for (String laggedPlayer : laggedPlayers) {
-                                    RedisUtil.cleanUpPlayer(laggedPlayer, tmpRsc);
-                                }
-                            }
-                        }
-
-                        Set<String> absentLocally = new HashSet<>(playersInRedis);
-                        absentLocally.removeAll(players);
-                        Set<String> absentInRedis = new HashSet<>(players);
-                        absentInRedis.removeAll(playersInRedis);
-
-                        for (String member : absentLocally) {
-                            boolean found = false;
-                            for (String proxyId : getServerIds()) {
-                                if (proxyId.equals(configuration.getServerId())) continue;
-                                if (tmpRsc.sismember("proxy:" + proxyId + ":usersOnline", member)) {
-                                    // Just clean up the set.
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (!found) {
-                                RedisUtil.cleanUpPlayer(member, tmpRsc);
-                                getLogger().warning("在本地和全局均未找到玩家: " + member);
-                            } else {
-                                tmpRsc.srem("proxy:" + configuration.getServerId() + ":usersOnline", member);
-                                getLogger().warning("在本地未找到玩家，因为玩家已经连接到另一个代理: " + member);
-                            }
-                        }
-
-                        Pipeline pipeline = tmpRsc.pipelined();
-
-                        for (String player : absentInRedis) {
-                            // Player not online according to Redis but not BungeeCord.
-                            getLogger().warning("玩家" + player + "在代理中，但不在Redis内");
-
-                            ProxiedPlayer proxiedPlayer = ProxyServer.getInstance().getPlayer(UUID.fromString(player));
-                            if (proxiedPlayer == null)
-                                continue; // We'll deal with it later.
-
-                            RedisUtil.createPlayer(proxiedPlayer, pipeline, true);
-                        }
-
-                        pipeline.sync();
-                    } catch (Throwable e) {
-                        getLogger().log(Level.SEVERE, "无法修复已存储的玩家数据", e);
-                    }
-                }
-            }, 0, 1, TimeUnit.MINUTES);
+            // Checks our player set a slice at a time, starting a new pass every minute.
+            integrityReconciler = new IntegrityReconciler(this, integritySuspectsScript);
+            integrityCheck = service.scheduleWithFixedDelay(integrityReconciler, 0, 1, TimeUnit.SECONDS);
         }
         getProxy().registerChannel("legacy:redisbungee");
         getProxy().registerChannel("RedisBungee");
@@ -374,23 +638,65 @@ public final class RedisBungee extends Plugin {
 
     @Override
     public void onDisable() {
-        if (pool != null) {
+        if (storage != null) {
             // Poison the PubSub listener
             psl.poison();
+            dispatcher.shutdown();
+            queryExecutor.shutdown();
+            mojangExecutor.shutdownNow();
             integrityCheck.cancel(true);
             heartbeatTask.cancel(true);
+            membershipTask.cancel(true);
+            if (replicaTask != null)
+                replicaTask.cancel(true);
+            if (topologyTask != null)
+                topologyTask.cancel(true);
+            sweepTask.cancel(false);
+            maintenanceLeader.stop();
+            if (diskCacheTask != null) {
+                diskCacheTask.cancel(false);
+                try {
+                    uuidTranslator.getDiskCache().close();
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "无法关闭本地UUID缓存文件", e);
+                }
+            }
             getProxy().getPluginManager().unregisterListeners(this);
 
-            try (Jedis tmpRsc = pool.getResource()) {
-                tmpRsc.hdel("heartbeats", configuration.getServerId());
-                if (tmpRsc.scard("proxy:" + configuration.getServerId() + ":usersOnline") > 0) {
-                    Set<String> players = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                    for (String member : players)
-                        RedisUtil.cleanUpPlayer(member, tmpRsc);
+            try (Jedis tmpRsc = getPool().getResource()) {
+                // Once a newer instance has claimed our ID, its heartbeat, counts and players are no longer ours to remove.
+                if (!superseded && String.valueOf(getEpoch()).equals(tmpRsc.get(RedisKeys.epoch(configuration.getServerId())))) {
+                    tmpRsc.hdel(RedisKeys.heartbeats(), configuration.getServerId());
+                    tmpRsc.hdel(RedisKeys.proxyCounts(), configuration.getServerId());
+                    tmpRsc.hdel(RedisKeys.dataProtocol(), configuration.getServerId());
+                    membership.announceLeave(tmpRsc);
+                    if (playerCleaner.cleanUp(configuration.getServerId(), getEpoch(), tmpRsc) == -1)
+                        getLogger().warning("另一个实例已接管代理ID " + configuration.getServerId() + ", 跳过清理玩家");
+                } else {
+                    getLogger().warning("另一个实例已接管代理ID " + configuration.getServerId() + ", 跳过关闭时的清理");
                 }
             }
 
-            pool.destroy();
+            try {
+                instanceLease.release();
+            } catch (JedisException e) {
+                getLogger().log(Level.WARNING, "无法释放实例租约", e);
+            }
+
+            // Make sure everything we've queued, including the LEAVEs above, goes out before the pool does.
+            publisher.stop();
+            storage.close();
+        }
+    }
+
+    private DiskUUIDCache openDiskCache() {
+        if (configuration.getUuidDiskCacheSize() == 0)
+            return null;
+        try {
+            return new DiskUUIDCache(new File(getDataFolder(), "uuid-cache.dat"), configuration.getUuidDiskCacheSize(), getLogger());
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "无法打开本地UUID缓存文件, 将只使用Redis中的缓存", e);
+            return null;
         }
     }
 
@@ -415,6 +721,10 @@ public final class RedisBungee extends Plugin {
         final int redisPort = configuration.getInt("redis-port", 6379);
         String redisPassword = configuration.getString("redis-password");
         String serverId = configuration.getString("server-id");
+        String sentinelMaster = configuration.getString("redis-sentinel-master", "");
+        List<String> sentinels = configuration.getStringList("redis-sentinels");
+        List<String> readReplicas = configuration.getStringList("redis-read-replicas");
+        RedisKeys.setPrefix(configuration.getString("redis-key-prefix", ""));
 
         if (redisPassword != null && (redisPassword.isEmpty() || redisPassword.equals("none"))) {
             redisPassword = null;
@@ -425,46 +735,45 @@ public final class RedisBungee extends Plugin {
             throw new RuntimeException("server-id未在配置中指定或为空");
         }
 
-        if (redisServer != null && !redisServer.isEmpty()) {
-            final String finalRedisPassword = redisPassword;
-            FutureTask<JedisPool> task = new FutureTask<>(new Callable<JedisPool>() {
+        if (sentinelMaster != null && !sentinelMaster.isEmpty()) {
+            if (sentinels.isEmpty()) {
+                throw new RuntimeException("已指定redis-sentinel-master，但redis-sentinels为空");
+            }
+            List<HostAndPort> sentinelAddresses = new ArrayList<>();
+            for (String sentinel : sentinels) {
+                sentinelAddresses.add(SentinelResolver.parseAddress(sentinel, 26379));
+            }
+            sentinelResolver = new SentinelResolver(sentinelAddresses, sentinelMaster);
+            readReplicasFromSentinel = readReplicas.isEmpty();
+        }
+
+        if (sentinelResolver != null || (redisServer != null && !redisServer.isEmpty())) {
+            final String password = redisPassword;
+            FutureTask<JedisStorage> task = new FutureTask<>(new Callable<JedisStorage>() {
                 @Override
-                public JedisPool call() throws Exception {
+                public JedisStorage call() throws Exception {
                     // Create the pool...
                     JedisPoolConfig config = new JedisPoolConfig();
                     config.setMaxTotal(configuration.getInt("max-redis-connections", 8));
-                    return new JedisPool(config, redisServer, redisPort, 0, finalRedisPassword);
+                    HostAndPort primary = sentinelResolver != null ? sentinelResolver.getMaster() : new HostAndPort(redisServer, redisPort);
+                    if (configuration.getString("redis-client", "netty").equalsIgnoreCase("jedis"))
+                        return new JedisStorage(config, password, primary);
+                    return new NettyStorage(config, password, primary);
                 }
             });
 
             getProxy().getScheduler().runAsync(this, task);
 
             try {
-                pool = task.get();
+                storage = task.get();
             } catch (InterruptedException | ExecutionException e) {
                 throw new RuntimeException("无法创建Redis连接池", e);
             }
 
             // Test the connection
-            try (Jedis rsc = pool.getResource()) {
+            try (Jedis rsc = getPool().getResource()) {
                 rsc.ping();
-                // If that worked, now we can check for an existing, alive Bungee:
-                File crashFile = new File(getDataFolder(), "restarted_from_crash.txt");
-                if (crashFile.exists()) {
-                    crashFile.delete();
-                } else if (rsc.hexists("heartbeats", serverId)) {
-                    try {
-                        long value = Long.parseLong(rsc.hget("heartbeats", serverId));
-                        long redisTime = getRedisTime(rsc.time());
-                        if (redisTime < value + 20) {
-                            getLogger().severe("你可能尝试运行两个ID相同的BungeeCord实例，另一个相同ID的实例已在运行.");
-                            getLogger().severe("为确保数据一致，RedisBungee现在将禁用.");
-                            getLogger().severe("如果您在当前BungeeCord崩溃并重新启动后接收到此错误，请在插件目录创建名为restarted_from_crash.txt的文件，之后RedisBungee将不会再检查此项");
-                            throw new RuntimeException("可能具有两个相同服务器ID的实例！");
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
+                // Whether another instance is running with our ID is checked once the scripts are loaded, see claimServerId.
 
                 FutureTask<Void> task2 = new FutureTask<>(new Callable<Void>() {
                     @Override
@@ -474,7 +783,7 @@ public final class RedisBungee extends Plugin {
                         httpClient.setDispatcher(dispatcher);
                         NameFetcher.setHttpClient(httpClient);
                         UUIDFetcher.setHttpClient(httpClient);
-                        RedisBungee.configuration = new RedisBungeeConfiguration(RedisBungee.this.getPool(), configuration);
+                        RedisBungee.configuration = new RedisBungeeConfiguration(RedisBungee.this, configuration);
                         return null;
                     }
                 });
@@ -487,10 +796,20 @@ public final class RedisBungee extends Plugin {
                     throw new RuntimeException("无法创建HTTP客户端", e);
                 }
 
+                if (!readReplicas.isEmpty()) {
+                    List<HostAndPort> replicaAddresses = new ArrayList<>();
+                    for (String replica : readReplicas) {
+                        replicaAddresses.add(SentinelResolver.parseAddress(replica, 6379));
+                    }
+                    storage.updateReadPools(replicaAddresses);
+                } else if (readReplicasFromSentinel) {
+                    storage.updateReadPools(sentinelResolver.getReplicas());
+                }
+
                 getLogger().log(Level.INFO, "成功连接到Redis服务器.");
             } catch (JedisConnectionException e) {
-                pool.destroy();
-                pool = null;
+                storage.close();
+                storage = null;
                 throw e;
             }
         } else {
@@ -501,19 +820,21 @@ public final class RedisBungee extends Plugin {
     @NoArgsConstructor(access = AccessLevel.PRIVATE)
     class PubSubListener implements Runnable {
         private JedisPubSubHandler jpsh;
+        private volatile boolean reconnect;
 
         private Set<String> addedChannels = new HashSet<String>();
 
         @Override
         public void run() {
             boolean broken = false;
-            try (Jedis rsc = pool.getResource()) {
+            try (Jedis rsc = getPool().getResource()) {
                 try {
                     jpsh = new JedisPubSubHandler();
                     addedChannels.add("redisbungee-" + configuration.getServerId());
                     addedChannels.add("redisbungee-allservers");
                     addedChannels.add("redisbungee-data");
-                    rsc.subscribe(jpsh, addedChannels.toArray(new String[0]));
+                    addedChannels.add(ProxyMembership.CHANNEL);
+                    rsc.subscribe(jpsh, encodeChannels(addedChannels.toArray(new String[0])));
                 } catch (Exception e) {
                     // FIXME: Extremely ugly hack
                     // Attempt to unsubscribe this instance and try again.
@@ -530,22 +851,44 @@ public final class RedisBungee extends Plugin {
                 }
             } catch (JedisConnectionException e) {
                 getLogger().log(Level.INFO, "PubSub错误，5秒后尝试恢复");
+                reconnect = false;
                 getProxy().getScheduler().schedule(RedisBungee.this, PubSubListener.this, 5, TimeUnit.SECONDS);
             }
 
-            if (broken) {
+            if (broken || reconnect) {
+                reconnect = false;
                 run();
             }
         }
 
         public void addChannel(String... channel) {
             addedChannels.addAll(Arrays.asList(channel));
-            jpsh.subscribe(channel);
+            jpsh.subscribe(encodeChannels(channel));
         }
 
         public void removeChannel(String... channel) {
             addedChannels.removeAll(Arrays.asList(channel));
-            jpsh.unsubscribe(channel);
+            jpsh.unsubscribe(encodeChannels(channel));
+        }
+
+        private byte[][] encodeChannels(String... channels) {
+            byte[][] encoded = new byte[channels.length][];
+            for (int i = 0; i < channels.length; i++) {
+                encoded[i] = SafeEncoder.encode(RedisKeys.channel(channels[i]));
+            }
+            return encoded;
+        }
+
+        /**
+         * Drops the subscription and subscribes again with a connection from the current pool.
+         */
+        public void reconnect() {
+            reconnect = true;
+            try {
+                jpsh.unsubscribe();
+            } catch (Exception ignored) {
+                // The connection is already gone, so the subscription loop is failing on its own.
+            }
         }
 
         public void poison() {
@@ -554,10 +897,38 @@ public final class RedisBungee extends Plugin {
         }
     }
 
-    private class JedisPubSubHandler extends JedisPubSub {
+    private class JedisPubSubHandler extends BinaryJedisPubSub {
         @Override
-        public void onMessage(final String s, final String s2) {
+        public void onMessage(byte[] channel, byte[] message) {
+            final String s = RedisKeys.channelName(SafeEncoder.encode(channel));
+            if (s.equals(DataMessageCodec.CHANNEL)) {
+                // Data messages may be binary, so they are decoded before going to the DataManager and listeners.
+                // Messages about the same player share a lane, so they are handled in the order they were sent.
+                DataManager.DataManagerMessage<?> decoded;
+                try {
+                    decoded = DataMessageCodec.decode(message);
+                } catch (RuntimeException e) {
+                    getLogger().log(Level.WARNING, "无法解析数据消息", e);
+                    return;
+                }
+                if (decoded.getAction() == DataManager.DataManagerMessage.Action.LEAVE_BATCH) {
+                    DataManager.BatchLogoutPayload payload = (DataManager.BatchLogoutPayload) decoded.getPayload();
+                    for (DataManager.DataManagerMessage<?> leave : payload.split(decoded.getSource())) {
+                        dispatchData(leave);
+                    }
+                } else {
+                    dispatchData(decoded);
+                }
+                return;
+            }
+            final String s2 = SafeEncoder.encode(message);
+            if (s.equals(ProxyMembership.CHANNEL)) {
+                membership.onMessage(s2);
+                return;
+            }
             if (s2.trim().length() == 0) return;
+            // Only data messages need to be seen in order. Everything else runs as soon as a thread is free, so a slow
+            // listener on one channel can't hold up the others, or the rest of its own channel.
             getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
                 @Override
                 public void run() {
@@ -565,5 +936,22 @@ public final class RedisBungee extends Plugin {
                 }
             });
         }
+
+        private void dispatchData(final DataManager.DataManagerMessage<?> message) {
+            dispatcher.dispatch(message.getTarget(), new Runnable() {
+                @Override
+                public void run() {
+                    dataManager.onDataMessage(message);
+                    // Listeners have always been given data messages as JSON, whichever encoding went over the wire,
+                    // but most never look at them, so it is only encoded for those that do.
+                    getProxy().getPluginManager().callEvent(new PubSubMessageEvent(DataMessageCodec.CHANNEL, new Supplier<String>() {
+                        @Override
+                        public String get() {
+                            return SafeEncoder.encode(DataMessageCodec.encodeJson(message));
+                        }
+                    }));
+                }
+            });
+        }
     }
 }
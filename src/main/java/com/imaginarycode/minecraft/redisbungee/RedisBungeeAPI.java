@@ -2,16 +2,20 @@ package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import lombok.NonNull;
 import net.md_5.bungee.api.config.ServerInfo;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * This class exposes some internal RedisBungee functions. You obtain an instance of this object by invoking {@link RedisBungee#getApi()}.
+ * <p>
+ * Most queries go to Redis and block while they do. Each of them has an {@code Async} variant that returns a
+ * {@link ListenableFuture} instead.
  *
  * @author tuxed
  * @since 0.2.3
@@ -25,7 +29,8 @@ public class RedisBungeeAPI {
         this.reservedChannels = ImmutableList.of(
                 "redisbungee-allservers",
                 "redisbungee-" + RedisBungee.getConfiguration().getServerId(),
-                "redisbungee-data"
+                "redisbungee-data",
+                "redisbungee-membership"
         );
     }
 
@@ -49,6 +54,23 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getLastOnline(player);
     }
 
+    /**
+     * Asynchronous version of {@link #getLastOnline(UUID)}. The query runs on RedisBungee's own threads, so this
+     * never blocks the caller.
+     *
+     * @param player a player UUID
+     * @return a future for the last time a player was on
+     * @since 0.5
+     */
+    public final ListenableFuture<Long> getLastOnlineAsync(@NonNull final UUID player) {
+        return plugin.getQueryExecutor().submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return getLastOnline(player);
+            }
+        });
+    }
+
     /**
      * Get the server where the specified player is playing. This function also deals with the case of local players
      * as well, and will return local information on them.
@@ -61,6 +83,22 @@ public class RedisBungeeAPI {
         return plugin.getProxy().getServerInfo(server);
     }
 
+    /**
+     * Asynchronous version of {@link #getServerFor(UUID)}.
+     *
+     * @param player a player UUID
+     * @return a future for the server the player is on
+     * @since 0.5
+     */
+    public final ListenableFuture<ServerInfo> getServerForAsync(@NonNull final UUID player) {
+        return plugin.getQueryExecutor().submit(new Callable<ServerInfo>() {
+            @Override
+            public ServerInfo call() {
+                return getServerFor(player);
+            }
+        });
+    }
+
     /**
      * Get a combined list of players on this network.
      * <p>
@@ -72,6 +110,21 @@ public class RedisBungeeAPI {
         return plugin.getPlayers();
     }
 
+    /**
+     * Asynchronous version of {@link #getPlayersOnline()}.
+     *
+     * @return a future for a Set with all players found
+     * @since 0.5
+     */
+    public final ListenableFuture<Set<UUID>> getPlayersOnlineAsync() {
+        return plugin.getQueryExecutor().submit(new Callable<Set<UUID>>() {
+            @Override
+            public Set<UUID> call() {
+                return getPlayersOnline();
+            }
+        });
+    }
+
     /**
      * Get a combined list of players on this network, as a collection of usernames.
      *
@@ -80,11 +133,22 @@ public class RedisBungeeAPI {
      * @since 0.3
      */
     public final Collection<String> getHumanPlayersOnline() {
-        Set<String> names = new HashSet<>();
-        for (UUID uuid : getPlayersOnline()) {
-            names.add(getNameFromUuid(uuid, false));
-        }
-        return names;
+        return new HashSet<>(getNamesFromUuids(getPlayersOnline(), false).values());
+    }
+
+    /**
+     * Asynchronous version of {@link #getHumanPlayersOnline()}.
+     *
+     * @return a future for a Set with all players found
+     * @since 0.5
+     */
+    public final ListenableFuture<Collection<String>> getHumanPlayersOnlineAsync() {
+        return plugin.getQueryExecutor().submit(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                return getHumanPlayersOnline();
+            }
+        });
     }
 
     /**
@@ -97,6 +161,21 @@ public class RedisBungeeAPI {
         return plugin.serversToPlayers();
     }
 
+    /**
+     * Asynchronous version of {@link #getServerToPlayers()}.
+     *
+     * @return a future for an immutable Multimap with all players found
+     * @since 0.5
+     */
+    public final ListenableFuture<Multimap<String, UUID>> getServerToPlayersAsync() {
+        return plugin.getQueryExecutor().submit(new Callable<Multimap<String, UUID>>() {
+            @Override
+            public Multimap<String, UUID> call() {
+                return getServerToPlayers();
+            }
+        });
+    }
+
     /**
      * Get a list of players on the server with the given name.
      *
@@ -104,7 +183,23 @@ public class RedisBungeeAPI {
      * @return a Set with all players found on this server
      */
     public final Set<UUID> getPlayersOnServer(@NonNull String server) {
-        return ImmutableSet.copyOf(getServerToPlayers().get(server));
+        return plugin.getPlayersOnServer(server);
+    }
+
+    /**
+     * Asynchronous version of {@link #getPlayersOnServer(String)}.
+     *
+     * @param server a server name
+     * @return a future for a Set with all players found on this server
+     * @since 0.5
+     */
+    public final ListenableFuture<Set<UUID>> getPlayersOnServerAsync(@NonNull final String server) {
+        return plugin.getQueryExecutor().submit(new Callable<Set<UUID>>() {
+            @Override
+            public Set<UUID> call() {
+                return getPlayersOnServer(server);
+            }
+        });
     }
 
     /**
@@ -117,6 +212,22 @@ public class RedisBungeeAPI {
         return plugin.getPlayersOnProxy(server);
     }
 
+    /**
+     * Asynchronous version of {@link #getPlayersOnProxy(String)}.
+     *
+     * @param server a proxy ID
+     * @return a future for a Set with all UUIDs found on this proxy
+     * @since 0.5
+     */
+    public final ListenableFuture<Set<UUID>> getPlayersOnProxyAsync(@NonNull final String server) {
+        return plugin.getQueryExecutor().submit(new Callable<Set<UUID>>() {
+            @Override
+            public Set<UUID> call() {
+                return getPlayersOnProxy(server);
+            }
+        });
+    }
+
     /**
      * Convenience method: Checks if the specified player is online.
      *
@@ -124,7 +235,23 @@ public class RedisBungeeAPI {
      * @return if the player is online
      */
     public final boolean isPlayerOnline(@NonNull UUID player) {
-        return getLastOnline(player) == 0;
+        return plugin.getDataManager().isPlayerOnline(player);
+    }
+
+    /**
+     * Asynchronous version of {@link #isPlayerOnline(UUID)}.
+     *
+     * @param player a player UUID
+     * @return a future for whether the player is online
+     * @since 0.5
+     */
+    public final ListenableFuture<Boolean> isPlayerOnlineAsync(@NonNull final UUID player) {
+        return plugin.getQueryExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return isPlayerOnline(player);
+            }
+        });
     }
 
     /**
@@ -138,6 +265,22 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getIp(player);
     }
 
+    /**
+     * Asynchronous version of {@link #getPlayerIp(UUID)}.
+     *
+     * @param player the player to fetch the IP for
+     * @return a future for the player's {@link java.net.InetAddress}, or null if they are offline
+     * @since 0.5
+     */
+    public final ListenableFuture<InetAddress> getPlayerIpAsync(@NonNull final UUID player) {
+        return plugin.getQueryExecutor().submit(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() {
+                return getPlayerIp(player);
+            }
+        });
+    }
+
     /**
      * Get the RedisBungee proxy ID this player is connected to.
      *
@@ -149,6 +292,164 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getProxy(player);
     }
 
+    /**
+     * Asynchronous version of {@link #getProxy(UUID)}.
+     *
+     * @param player the player to fetch the proxy for
+     * @return a future for the proxy the player is connected to, or null if they are offline
+     * @since 0.5
+     */
+    public final ListenableFuture<String> getProxyAsync(@NonNull final UUID player) {
+        return plugin.getQueryExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return getProxy(player);
+            }
+        });
+    }
+
+    /**
+     * Get the servers many players are on at once. Players on this proxy and players already cached are answered
+     * locally, and all the rest are read from Redis in one round trip, so this is much cheaper than calling
+     * {@link #getServerFor(UUID)} for each of them.
+     *
+     * @param players the players to fetch the servers for
+     * @return a map with every player asked about, to the server they are on or null if they aren't on one
+     * @since 0.5
+     */
+    public final Map<UUID, ServerInfo> getServersFor(@NonNull Collection<UUID> players) {
+        Map<UUID, ServerInfo> servers = new HashMap<>(players.size());
+        for (Map.Entry<UUID, String> entry : plugin.getDataManager().getServers(players).entrySet()) {
+            servers.put(entry.getKey(), entry.getValue() != null ? plugin.getProxy().getServerInfo(entry.getValue()) : null);
+        }
+        return servers;
+    }
+
+    /**
+     * Asynchronous version of {@link #getServersFor(Collection)}.
+     *
+     * @param players the players to fetch the servers for
+     * @return a future for a map of players to the servers they are on
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, ServerInfo>> getServersForAsync(@NonNull final Collection<UUID> players) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, ServerInfo>>() {
+            @Override
+            public Map<UUID, ServerInfo> call() {
+                return getServersFor(players);
+            }
+        });
+    }
+
+    /**
+     * Get the proxies many players are connected to at once, in one round trip to Redis at most.
+     *
+     * @param players the players to fetch the proxies for
+     * @return a map with every player asked about, to the proxy they are connected to or null if they are offline
+     * @since 0.5
+     */
+    public final Map<UUID, String> getProxies(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getProxies(players);
+    }
+
+    /**
+     * Asynchronous version of {@link #getProxies(Collection)}.
+     *
+     * @param players the players to fetch the proxies for
+     * @return a future for a map of players to the proxies they are connected to
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, String>> getProxiesAsync(@NonNull final Collection<UUID> players) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, String>>() {
+            @Override
+            public Map<UUID, String> call() {
+                return getProxies(players);
+            }
+        });
+    }
+
+    /**
+     * Get the {@link java.net.InetAddress}es of many players at once, in one round trip to Redis at most.
+     *
+     * @param players the players to fetch the IPs for
+     * @return a map with every player asked about, to their address or null if they are offline
+     * @since 0.5
+     */
+    public final Map<UUID, InetAddress> getPlayerIps(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getIps(players);
+    }
+
+    /**
+     * Asynchronous version of {@link #getPlayerIps(Collection)}.
+     *
+     * @param players the players to fetch the IPs for
+     * @return a future for a map of players to their addresses
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, InetAddress>> getPlayerIpsAsync(@NonNull final Collection<UUID> players) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, InetAddress>>() {
+            @Override
+            public Map<UUID, InetAddress> call() {
+                return getPlayerIps(players);
+            }
+        });
+    }
+
+    /**
+     * Get the last time many players were on at once, in one round trip to Redis at most. The values mean the same
+     * as those of {@link #getLastOnline(UUID)}.
+     *
+     * @param players the players to fetch the times for
+     * @return a map with every player asked about, to the last time they were on
+     * @since 0.5
+     */
+    public final Map<UUID, Long> getLastOnlineTimes(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getLastOnlineTimes(players);
+    }
+
+    /**
+     * Asynchronous version of {@link #getLastOnlineTimes(Collection)}.
+     *
+     * @param players the players to fetch the times for
+     * @return a future for a map of players to the last time they were on
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, Long>> getLastOnlineTimesAsync(@NonNull final Collection<UUID> players) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, Long>>() {
+            @Override
+            public Map<UUID, Long> call() {
+                return getLastOnlineTimes(players);
+            }
+        });
+    }
+
+    /**
+     * Checks whether many players are online at once, in one round trip to Redis at most.
+     *
+     * @param players the players to check
+     * @return a map with every player asked about, to whether they are online
+     * @since 0.5
+     */
+    public final Map<UUID, Boolean> arePlayersOnline(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().arePlayersOnline(players);
+    }
+
+    /**
+     * Asynchronous version of {@link #arePlayersOnline(Collection)}.
+     *
+     * @param players the players to check
+     * @return a future for a map of players to whether they are online
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, Boolean>> arePlayersOnlineAsync(@NonNull final Collection<UUID> players) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, Boolean>>() {
+            @Override
+            public Map<UUID, Boolean> call() {
+                return arePlayersOnline(players);
+            }
+        });
+    }
+
     /**
      * Sends a proxy command to all proxies.
      *
@@ -263,6 +564,24 @@ public class RedisBungeeAPI {
         return plugin.getUuidTranslator().getNameFromUuid(uuid, expensiveLookups);
     }
 
+    /**
+     * Asynchronous version of {@link #getNameFromUuid(java.util.UUID, boolean)}. Mojang lookups are allowed to be
+     * slow here, since they no longer hold up the caller.
+     *
+     * @param uuid             the UUID to fetch the name for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for the name for the UUID
+     * @since 0.5
+     */
+    public final ListenableFuture<String> getNameFromUuidAsync(@NonNull final UUID uuid, final boolean expensiveLookups) {
+        return plugin.getQueryExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return getNameFromUuid(uuid, expensiveLookups);
+            }
+        });
+    }
+
     /**
      * Fetch a UUID from the specified name. Names are cached locally and in Redis. This function falls back to Mojang
      * as a last resort, so calls <strong>may</strong> be blocking.
@@ -296,4 +615,83 @@ public class RedisBungeeAPI {
     public final UUID getUuidFromName(@NonNull String name, boolean expensiveLookups) {
         return plugin.getUuidTranslator().getTranslatedUuid(name, expensiveLookups);
     }
+
+    /**
+     * Asynchronous version of {@link #getUuidFromName(String, boolean)}.
+     *
+     * @param name             the name to fetch the UUID for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for the UUID for the name
+     * @since 0.5
+     */
+    public final ListenableFuture<UUID> getUuidFromNameAsync(@NonNull final String name, final boolean expensiveLookups) {
+        return plugin.getQueryExecutor().submit(new Callable<UUID>() {
+            @Override
+            public UUID call() {
+                return getUuidFromName(name, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * Fetch the names of many players at once. This is much cheaper than calling {@link #getNameFromUuid(UUID, boolean)}
+     * for each of them: everything not cached locally is read from Redis in one round trip. If {@code expensiveLookups}
+     * is true, players still unknown after that are looked up via Mojang, so calls <strong>may</strong> be blocking.
+     *
+     * @param uuids            the UUIDs to fetch the names for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a map of UUIDs to names, without the UUIDs whose names could not be found
+     * @since 0.5
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> uuids, boolean expensiveLookups) {
+        return plugin.getUuidTranslator().getNamesFromUuids(uuids, expensiveLookups);
+    }
+
+    /**
+     * Asynchronous version of {@link #getNamesFromUuids(Collection, boolean)}.
+     *
+     * @param uuids            the UUIDs to fetch the names for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for a map of UUIDs to names
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<UUID, String>> getNamesFromUuidsAsync(@NonNull final Collection<UUID> uuids, final boolean expensiveLookups) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<UUID, String>>() {
+            @Override
+            public Map<UUID, String> call() {
+                return getNamesFromUuids(uuids, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * Fetch the UUIDs of many names at once. Everything not cached locally is read from Redis in one round trip. If
+     * {@code expensiveLookups} is true, names still unknown after that are looked up via Mojang in as few requests as
+     * possible, so calls <strong>may</strong> be blocking.
+     *
+     * @param names            the names to fetch the UUIDs for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a map of the names as given to UUIDs, without the names whose UUIDs could not be found
+     * @since 0.5
+     */
+    public final Map<String, UUID> getUuidsFromNames(@NonNull Collection<String> names, boolean expensiveLookups) {
+        return plugin.getUuidTranslator().getUuidsFromNames(names, expensiveLookups);
+    }
+
+    /**
+     * Asynchronous version of {@link #getUuidsFromNames(Collection, boolean)}.
+     *
+     * @param names            the names to fetch the UUIDs for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for a map of the names as given to UUIDs
+     * @since 0.5
+     */
+    public final ListenableFuture<Map<String, UUID>> getUuidsFromNamesAsync(@NonNull final Collection<String> names, final boolean expensiveLookups) {
+        return plugin.getQueryExecutor().submit(new Callable<Map<String, UUID>>() {
+            @Override
+            public Map<String, UUID> call() {
+                return getUuidsFromNames(names, expensiveLookups);
+            }
+        });
+    }
 }
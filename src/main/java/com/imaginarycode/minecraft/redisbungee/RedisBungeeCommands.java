@@ -1,8 +1,15 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.util.MaintenanceLeader;
+import com.imaginarycode.minecraft.redisbungee.util.OrderedDispatcher;
+import com.imaginarycode.minecraft.redisbungee.util.RedisPublisher;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.MojangLookupService;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDCacheSweeper;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDTranslator;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
@@ -56,9 +63,10 @@ class RedisBungeeCommands {
                             .append(playerPlural(count) + "在线").create();
                     if (args.length > 0 && args[0].equals("showall")) {
                         Multimap<String, UUID> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
+                        Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(serverToPlayers.values(), false);
                         Multimap<String, String> human = HashMultimap.create();
                         for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
-                            human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                            human.put(entry.getKey(), names.get(entry.getValue()));
                         }
                         for (String server : new TreeSet<>(serverToPlayers.keySet())) {
                             TextComponent serverName = new TextComponent();
@@ -307,10 +315,11 @@ class RedisBungeeCommands {
                             .append(playerPlural(players.size()) + "已连接到代理" + proxy + ".").create();
                     if (args.length >= 2 && args[1].equals("showall")) {
                         Multimap<String, UUID> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
+                        Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(players, false);
                         Multimap<String, String> human = HashMultimap.create();
                         for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
                             if (players.contains(entry.getValue())) {
-                                human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                                human.put(entry.getKey(), names.get(entry.getValue()));
                             }
                         }
                         for (String server : new TreeSet<>(human.keySet())) {
@@ -351,6 +360,43 @@ class RedisBungeeCommands {
             sender.sendMessage(poolActiveStat);
             sender.sendMessage(poolIdleStat);
             sender.sendMessage(poolWaitingStat);
+            sender.sendMessage(new TextComponent("读取副本: " + plugin.getReadPoolCount()));
+            RedisPublisher publisher = RedisBungee.getPublisher();
+            sender.sendMessage(new TextComponent("发布队列中的消息: " + publisher.getQueueDepth()));
+            sender.sendMessage(new TextComponent("已发布的消息: " + publisher.getPublished() + " (共" + publisher.getBatches() + "批, 上一批" + publisher.getLastBatchSize() + "条)"));
+            sender.sendMessage(new TextComponent("已丢弃/发布失败的消息: " + publisher.getDropped() + "/" + publisher.getFailed()));
+            OrderedDispatcher dispatcher = plugin.getDispatcher();
+            sender.sendMessage(new TextComponent("PubSub分发队列: " + dispatcher.getQueueDepth() + " (" + dispatcher.getLaneCount() + "个通道, 最长" + dispatcher.getDeepestLane() + ")"));
+            sender.sendMessage(new TextComponent("已分发的PubSub消息: " + dispatcher.getDispatched() + " (等待次数: " + dispatcher.getStalls() + ")"));
+            sender.sendMessage(new TextComponent("玩家记录缓存条目: " + plugin.getDataManager().getCachedRecords()));
+            UUIDTranslator translator = plugin.getUuidTranslator();
+            sender.sendMessage(new TextComponent("UUID缓存条目: " + translator.getCacheSize()));
+            sender.sendMessage(new TextComponent("名称->UUID缓存: " + formatStats(translator.getNameCacheStats())));
+            sender.sendMessage(new TextComponent("UUID->名称缓存: " + formatStats(translator.getUuidCacheStats())));
+            sender.sendMessage(new TextComponent("未知玩家缓存: " + formatStats(translator.getNegativeCacheStats())));
+            if (translator.getDiskCache() != null)
+                sender.sendMessage(new TextComponent("本地磁盘缓存条目: " + translator.getDiskCache().size()));
+            MojangLookupService mojang = translator.getMojangLookups();
+            sender.sendMessage(new TextComponent("Mojang请求: " + mojang.getRequests() + " (合并的查询: " + mojang.getCoalesced() + ", 限速: " + mojang.getThrottled() + ")"));
+            sender.sendMessage(new TextComponent("Mojang熔断器: " + (mojang.getBreaker().isOpen() ? "断开" : "正常") + " (已拒绝: " + mojang.getBreaker().getRejected() + ")"));
+            ProxyMembership membership = plugin.getMembership();
+            sender.sendMessage(new TextComponent("在线代理: " + membership.getMembers().size() + " (与Redis的时钟偏差: " + membership.getClockOffset() + "毫秒)"));
+            MaintenanceLeader leader = plugin.getMaintenanceLeader();
+            sender.sendMessage(new TextComponent("维护任务负责代理: " + (leader.getHolder() == null ? "无" : leader.getHolder())
+                    + (leader.isLeader() ? " (本代理, 令牌: " + leader.getFence() + ")" : "")));
+            UUIDCacheSweeper sweeper = plugin.getUuidCacheSweeper();
+            if (sweeper.isLeader())
+                sender.sendMessage(new TextComponent("uuid-cache清理: 由本代理负责 (" + (sweeper.isMigrating() ? "迁移旧格式" : "清理过期记录")
+                        + ", 本轮已扫描" + sweeper.getScanned() + "条, 已迁移" + sweeper.getMigrated() + "条, 已删除" + sweeper.getReclaimed() + "条)"));
+            else
+                sender.sendMessage(new TextComponent("uuid-cache清理: 由其他代理负责"));
+            IntegrityReconciler reconciler = plugin.getIntegrityReconciler();
+            sender.sendMessage(new TextComponent("完整性检查: 上一轮耗时" + reconciler.getLastPassMillis() + "毫秒 (占用" + reconciler.getLastPassBusyMillis()
+                    + "毫秒), 修复" + reconciler.getLastPassRepaired() + "条 (累计" + reconciler.getTotalRepaired() + "条)"));
+        }
+
+        private String formatStats(CacheStats stats) {
+            return "命中" + stats.hitCount() + "次, 未命中" + stats.missCount() + "次, 驱逐" + stats.evictionCount() + "次";
         }
     }
 }
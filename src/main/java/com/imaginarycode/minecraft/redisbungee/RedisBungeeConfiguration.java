@@ -10,17 +10,28 @@ import java.net.InetAddress;
 import java.util.List;
 
 public class RedisBungeeConfiguration {
-    @Getter
-    private final JedisPool pool;
+    private final RedisBungee plugin;
     @Getter
     private final String serverId;
     @Getter
     private final boolean registerBungeeCommands;
     @Getter
     private final List<InetAddress> exemptAddresses;
+    @Getter
+    private final boolean replicaMode;
+    @Getter
+    private final int maxRedisConnections;
+    @Getter
+    private final int mojangRequestsPerMinute;
+    @Getter
+    private final int uuidDiskCacheSize;
+    @Getter
+    private final String playerCacheSpec;
+    @Getter
+    private final int unknownPlayerCacheSeconds;
 
-    public RedisBungeeConfiguration(JedisPool pool, Configuration configuration) {
-        this.pool = pool;
+    public RedisBungeeConfiguration(RedisBungee plugin, Configuration configuration) {
+        this.plugin = plugin;
         this.serverId = configuration.getString("server-id");
         this.registerBungeeCommands = configuration.getBoolean("register-bungee-commands", true);
 
@@ -32,5 +43,22 @@ public class RedisBungeeConfiguration {
         }
 
         this.exemptAddresses = addressBuilder.build();
+        this.replicaMode = configuration.getBoolean("replica-mode", false);
+        this.maxRedisConnections = configuration.getInt("max-redis-connections", 8);
+        this.mojangRequestsPerMinute = Math.max(1, configuration.getInt("mojang-requests-per-minute", 60));
+        this.uuidDiskCacheSize = Math.max(0, configuration.getInt("uuid-disk-cache-size", 50000));
+        this.playerCacheSpec = configuration.getString("player-cache-spec", "maximumSize=100000,expireAfterWrite=1h");
+        this.unknownPlayerCacheSeconds = Math.max(0, configuration.getInt("unknown-player-cache-seconds", 10));
+    }
+
+    /**
+     * Returns the pool of connections to the current primary. It is replaced when Sentinel fails over, so don't keep
+     * it around.
+     *
+     * @deprecated use {@link RedisBungee#getPool()}
+     */
+    @Deprecated
+    public JedisPool getPool() {
+        return plugin.getPool();
     }
 }
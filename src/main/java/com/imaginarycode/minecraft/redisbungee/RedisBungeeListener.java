@@ -2,6 +2,7 @@ package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
 import com.google.common.io.ByteArrayDataInput;
@@ -9,6 +10,8 @@ import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import com.imaginarycode.minecraft.redisbungee.util.RedisCallable;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.CompactUUIDEntry;
 import lombok.AllArgsConstructor;
 import net.md_5.bungee.api.AbstractReconnectHandler;
 import net.md_5.bungee.api.ChatColor;
@@ -24,6 +27,7 @@ import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
 
 import java.net.InetAddress;
 import java.util.*;
@@ -35,6 +39,11 @@ public class RedisBungeeListener implements Listener {
                     .append("\n\n请尝试在几分钟后重新登录.\n如果问题仍然存在，请联系管理员.")
                     .color(ChatColor.GRAY)
                     .create();
+    private static final BaseComponent[] PROXY_SUPERSEDED =
+            new ComponentBuilder("此代理暂时无法接受连接.").color(ChatColor.RED)
+                    .append("\n\n请尝试连接到其他代理或稍后重新登录.\n如果问题仍然存在，请联系管理员.")
+                    .color(ChatColor.GRAY)
+                    .create();
     private static final BaseComponent[] ONLINE_MODE_RECONNECT =
             new ComponentBuilder("Whoops! 你需要重新连接.").color(ChatColor.RED)
                     .append("\n\n我们发现有人使用您的ID进入了服务器。他们已被踢出，并且你可能需要重新连接.\n如果这不是您的操作并且重新连接无效，请联系管理员.")
@@ -67,20 +76,41 @@ public class RedisBungeeListener implements Listener {
                         }
                     }
 
-                    for (String s : plugin.getServerIds()) {
-                        if (jedis.sismember("proxy:" + s + ":usersOnline", event.getConnection().getUniqueId().toString())) {
-                            event.setCancelled(true);
-                            // TODO: Make it accept a BaseComponent[] like everything else.
-                            event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
-                            return null;
-                        }
+                    // Check every proxy and claim the player in one step, so two proxies can't both let them in.
+                    // We're not publishing, the API says we only publish at PostLoginEvent time.
+                    UUID uuid = event.getConnection().getUniqueId();
+                    String name = event.getConnection().getName();
+                    CompactUUIDEntry entry = plugin.getUuidTranslator().cacheInfo(name, uuid);
+                    String serverId = RedisBungee.getConfiguration().getServerId();
+                    ImmutableList.Builder<byte[]> keys = ImmutableList.<byte[]>builder()
+                            .add(SafeEncoder.encode(RedisKeys.epoch(serverId)))
+                            .add(SafeEncoder.encode(RedisKeys.proxyPlayers(serverId)))
+                            .add(SafeEncoder.encode(RedisKeys.proxyPlayersChecksum(serverId)))
+                            .add(SafeEncoder.encode(RedisKeys.player(uuid)))
+                            .add(CompactUUIDEntry.nameBucket(name))
+                            .add(CompactUUIDEntry.uuidBucket(uuid));
+                    for (String proxy : plugin.getServerIds()) {
+                        keys.add(SafeEncoder.encode(RedisKeys.proxyPlayers(proxy)));
                     }
+                    List<byte[]> args = ImmutableList.of(
+                            SafeEncoder.encode(uuid.toString()),
+                            SafeEncoder.encode(serverId),
+                            SafeEncoder.encode(event.getConnection().getAddress().getAddress().getHostAddress()),
+                            CompactUUIDEntry.nameField(name),
+                            entry.encode(),
+                            CompactUUIDEntry.uuidField(uuid),
+                            SafeEncoder.encode(String.valueOf(plugin.getEpoch())));
+                    Long admitted = (Long) plugin.getLoginScript().evalBinary(jedis, keys.build(), args);
 
-                    Pipeline pipeline = jedis.pipelined();
-                    plugin.getUuidTranslator().persistInfo(event.getConnection().getName(), event.getConnection().getUniqueId(), pipeline);
-                    RedisUtil.createPlayer(event.getConnection(), pipeline, false);
-                    // We're not publishing, the API says we only publish at PostLoginEvent time.
-                    pipeline.sync();
+                    if (admitted == 0) {
+                        event.setCancelled(true);
+                        // TODO: Make it accept a BaseComponent[] like everything else.
+                        event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
+                    } else if (admitted == -1) {
+                        // A newer instance has claimed our server ID, so we can't register anyone under it.
+                        event.setCancelled(true);
+                        event.setCancelReason(TextComponent.toLegacyText(PROXY_SUPERSEDED));
+                    }
 
                     return null;
                 } finally {
@@ -92,15 +122,9 @@ public class RedisBungeeListener implements Listener {
 
     @EventHandler
     public void onPostLogin(final PostLoginEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
-            @Override
-            protected Void call(Jedis jedis) {
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                        new DataManager.LoginPayload(event.getPlayer().getAddress().getAddress()))));
-                return null;
-            }
-        });
+        RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, RedisBungee.getCodec().encode(new DataManager.DataManagerMessage<>(
+                event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
+                new DataManager.LoginPayload(event.getPlayer().getAddress().getAddress()))));
     }
 
     @EventHandler
@@ -108,9 +132,14 @@ public class RedisBungeeListener implements Listener {
         plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
             @Override
             protected Void call(Jedis jedis) {
+                if (plugin.isSuperseded())
+                    return null;
                 Pipeline pipeline = jedis.pipelined();
-                RedisUtil.cleanUpPlayer(event.getPlayer().getUniqueId().toString(), pipeline);
+                Server server = event.getPlayer().getServer();
+                String uuid = event.getPlayer().getUniqueId().toString();
+                long timestamp = RedisUtil.cleanUpPlayer(uuid, server == null ? null : server.getInfo().getName(), pipeline);
                 pipeline.sync();
+                RedisUtil.announceLeave(uuid, timestamp);
                 return null;
             }
         });
@@ -122,8 +151,12 @@ public class RedisBungeeListener implements Listener {
         plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
             @Override
             protected Void call(Jedis jedis) {
-                jedis.hset("player:" + event.getPlayer().getUniqueId().toString(), "server", event.getServer().getInfo().getName());
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                if (plugin.isSuperseded())
+                    return null;
+                Pipeline pipeline = jedis.pipelined();
+                RedisUtil.changeServer(event.getPlayer(), currentServer, event.getServer().getInfo().getName(), pipeline);
+                pipeline.sync();
+                RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, RedisBungee.getCodec().encode(new DataManager.DataManagerMessage<>(
                         event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.SERVER_CHANGE,
                         new DataManager.ServerChangePayload(event.getServer().getInfo().getName(), currentServer))));
                 return null;
@@ -174,9 +207,7 @@ public class RedisBungeeListener implements Listener {
                                 } catch (IllegalArgumentException ignored) {
                                 }
                             }
-                            Set<String> players = new HashSet<>();
-                            for (UUID uuid : original)
-                                players.add(plugin.getUuidTranslator().getNameFromUuid(uuid, false));
+                            Set<String> players = new HashSet<>(plugin.getUuidTranslator().getNamesFromUuids(original, false).values());
                             out.writeUTF(Joiner.on(',').join(players));
                             break;
                         case "PlayerCount":
@@ -187,11 +218,7 @@ public class RedisBungeeListener implements Listener {
                                 out.writeInt(plugin.getCount());
                             } else {
                                 out.writeUTF(type);
-                                try {
-                                    out.writeInt(RedisBungee.getApi().getPlayersOnServer(type).size());
-                                } catch (IllegalArgumentException e) {
-                                    out.writeInt(0);
-                                }
+                                out.writeInt(plugin.getPlayerCountOnServer(type));
                             }
                             break;
                         case "LastOnline":
@@ -203,7 +230,6 @@ public class RedisBungeeListener implements Listener {
                         case "ServerPlayers":
                             String type1 = in.readUTF();
                             out.writeUTF("ServerPlayers");
-                            Multimap<String, UUID> multimap = RedisBungee.getApi().getServerToPlayers();
 
                             boolean includesUsers;
 
@@ -222,13 +248,15 @@ public class RedisBungeeListener implements Listener {
                             out.writeUTF(type1);
 
                             if (includesUsers) {
+                                Multimap<String, UUID> multimap = RedisBungee.getApi().getServerToPlayers();
+                                Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(multimap.values(), false);
                                 Multimap<String, String> human = HashMultimap.create();
                                 for (Map.Entry<String, UUID> entry : multimap.entries()) {
-                                    human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                                    human.put(entry.getKey(), names.get(entry.getValue()));
                                 }
                                 serializeMultimap(human, true, out);
                             } else {
-                                serializeMultiset(multimap.keys(), out);
+                                serializeMultiset(plugin.getServerPlayerCounts(), out);
                             }
                             break;
                         case "Proxy":
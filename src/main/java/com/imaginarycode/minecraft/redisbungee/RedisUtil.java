@@ -1,62 +1,171 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import net.md_5.bungee.api.connection.PendingConnection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
 @VisibleForTesting
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class RedisUtil {
-    protected static void createPlayer(ProxiedPlayer player, Pipeline pipeline, boolean fireEvent) {
-        createPlayer(player.getPendingConnection(), pipeline, fireEvent);
-        if (player.getServer() != null)
-            pipeline.hset("player:" + player.getUniqueId().toString(), "server", player.getServer().getInfo().getName());
+    // How many times syncServerIndex compares again after a player moved under it.
+    private static final int SERVER_INDEX_ATTEMPTS = 3;
+
+    /**
+     * Queues the writes that put {@code player} online on this proxy. Announce them with {@link #announceJoin} once
+     * the pipeline has been synced.
+     */
+    protected static void createPlayer(ProxiedPlayer player, Pipeline pipeline) {
+        createPlayer(player.getPendingConnection(), pipeline);
+        if (player.getServer() != null) {
+            String server = player.getServer().getInfo().getName();
+            pipeline.hset(RedisKeys.player(player.getUniqueId().toString()), "server", server);
+            pipeline.sadd(RedisKeys.proxyServers(RedisBungee.getApi().getServerId()), server);
+            pipeline.sadd(RedisKeys.serverPlayers(RedisBungee.getApi().getServerId(), server), player.getUniqueId().toString());
+        }
     }
 
-    protected static void createPlayer(PendingConnection connection, Pipeline pipeline, boolean fireEvent) {
+    protected static void createPlayer(PendingConnection connection, Pipeline pipeline) {
         Map<String, String> playerData = new HashMap<>(4);
         playerData.put("online", "0");
         playerData.put("ip", connection.getAddress().getAddress().getHostAddress());
         playerData.put("proxy", RedisBungee.getConfiguration().getServerId());
 
-        pipeline.sadd("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", connection.getUniqueId().toString());
-        pipeline.hmset("player:" + connection.getUniqueId().toString(), playerData);
+        updateProxyPlayers(RedisBungee.getApi().getServerId(), true, connection.getUniqueId().toString(), pipeline);
+        pipeline.hmset(RedisKeys.player(connection.getUniqueId().toString()), playerData);
+    }
 
-        if (fireEvent) {
-            pipeline.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                    connection.getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                    new DataManager.LoginPayload(connection.getAddress().getAddress()))));
-        }
+    /**
+     * Tells the other proxies that a player has joined. Only call this once the player's state is in Redis, so that
+     * nobody hears about them before they can look them up.
+     */
+    static void announceJoin(PendingConnection connection) {
+        RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, RedisBungee.getCodec().encode(new DataManager.DataManagerMessage<>(
+                connection.getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
+                new DataManager.LoginPayload(connection.getAddress().getAddress()))));
     }
 
-    public static void cleanUpPlayer(String player, Jedis rsc) {
-        rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server",  "ip", "proxy");
+    /**
+     * Queues the writes that mark {@code player} offline. Announce them with {@link #announceLeave} once the pipeline
+     * has been synced.
+     *
+     * @return the time the player left, for the announcement
+     */
+    public static long cleanUpPlayer(String player, String server, Pipeline rsc) {
+        if (server != null)
+            rsc.srem(RedisKeys.serverPlayers(RedisBungee.getApi().getServerId(), server), player);
+        updateProxyPlayers(RedisBungee.getApi().getServerId(), false, player, rsc);
+        rsc.hdel(RedisKeys.player(player), "server", "ip", "proxy");
         long timestamp = System.currentTimeMillis();
-        rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
-                new DataManager.LogoutPayload(timestamp))));
+        rsc.hset(RedisKeys.player(player), "online", String.valueOf(timestamp));
+        return timestamp;
     }
 
-    public static void cleanUpPlayer(String player, Pipeline rsc) {
-        rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server", "ip", "proxy");
-        long timestamp = System.currentTimeMillis();
-        rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+    /**
+     * Tells the other proxies that a player has left. Only call this once the player's state is in Redis.
+     */
+    static void announceLeave(String player, long timestamp) {
+        RedisBungee.getPublisher().publish(DataMessageCodec.CHANNEL, RedisBungee.getCodec().encode(new DataManager.DataManagerMessage<>(
                 UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
                 new DataManager.LogoutPayload(timestamp))));
     }
 
+    /**
+     * Queues adding {@code player} to {@code proxy}'s player set, or removing them from it, along with the change to
+     * the set's checksum.
+     */
+    static void updateProxyPlayers(String proxy, boolean add, String player, Pipeline pipeline) {
+        RedisBungee.getProxyPlayersScript().eval(pipeline,
+                ImmutableList.of(RedisKeys.proxyPlayers(proxy), RedisKeys.proxyPlayersChecksum(proxy)),
+                ImmutableList.of(add ? "add" : "remove", player));
+    }
+
+    static void changeServer(ProxiedPlayer player, String oldServer, String newServer, Pipeline pipeline) {
+        String proxy = RedisBungee.getApi().getServerId();
+        String uuid = player.getUniqueId().toString();
+        pipeline.multi();
+        if (oldServer != null)
+            pipeline.srem(RedisKeys.serverPlayers(proxy, oldServer), uuid);
+        pipeline.sadd(RedisKeys.proxyServers(proxy), newServer);
+        pipeline.sadd(RedisKeys.serverPlayers(proxy, newServer), uuid);
+        pipeline.hset(RedisKeys.player(uuid), "server", newServer);
+        pipeline.exec();
+    }
+
+    /**
+     * Brings the server index of {@code proxy} in line with {@code localIndex}, adding and removing only the players
+     * that have drifted. The index is watched from before it is read, and if a player changes servers before the
+     * repairs are made, they are thrown away and the comparison is done again, so a move is never undone by a stale
+     * view of it.
+     *
+     * @return how many players were repaired, or -1 if the index kept changing and was left for the next time
+     */
+    static int syncServerIndex(String proxy, Supplier<Multimap<String, String>> localIndex, Jedis rsc) {
+        for (int attempt = 0; attempt < SERVER_INDEX_ATTEMPTS; attempt++) {
+            rsc.watch(RedisKeys.proxyServers(proxy));
+            Set<String> servers = new HashSet<>(rsc.smembers(RedisKeys.proxyServers(proxy)));
+            Set<String> indexed = ImmutableSet.copyOf(servers);
+            // Read after the watch, so any move it doesn't see yet aborts the transaction below.
+            Multimap<String, String> local = localIndex.get();
+            servers.addAll(local.keySet());
+
+            List<String> keys = new ArrayList<>(servers.size());
+            for (String server : servers)
+                keys.add(RedisKeys.serverPlayers(proxy, server));
+            if (!keys.isEmpty())
+                rsc.watch(keys.toArray(new String[keys.size()]));
+            Pipeline pipeline = rsc.pipelined();
+            Map<String, Response<Set<String>>> stored = new HashMap<>(servers.size());
+            for (String server : servers)
+                stored.put(server, pipeline.smembers(RedisKeys.serverPlayers(proxy, server)));
+            pipeline.sync();
+
+            int repaired = 0;
+            Transaction transaction = null;
+            for (String server : servers) {
+                Set<String> expected = ImmutableSet.copyOf(local.get(server));
+                Set<String> actual = stored.get(server).get();
+                Set<String> missing = Sets.difference(expected, actual);
+                Set<String> extra = Sets.difference(actual, expected);
+                boolean listed = indexed.contains(server);
+                if (missing.isEmpty() && extra.isEmpty() && listed == !expected.isEmpty())
+                    continue;
+                if (transaction == null)
+                    transaction = rsc.multi();
+                if (!extra.isEmpty())
+                    transaction.srem(RedisKeys.serverPlayers(proxy, server), extra.toArray(new String[extra.size()]));
+                if (!missing.isEmpty())
+                    transaction.sadd(RedisKeys.serverPlayers(proxy, server), missing.toArray(new String[missing.size()]));
+                if (expected.isEmpty() && listed)
+                    transaction.srem(RedisKeys.proxyServers(proxy), server);
+                else if (!expected.isEmpty() && !listed)
+                    transaction.sadd(RedisKeys.proxyServers(proxy), server);
+                repaired += missing.size() + extra.size();
+            }
+
+            if (transaction == null) {
+                rsc.unwatch();
+                return 0;
+            }
+            if (transaction.exec() != null)
+                return repaired;
+        }
+        return -1;
+    }
+
     public static boolean canUseLua(String redisVersion) {
         // Need to use >=2.6 to use Lua optimizations.
         String[] args = redisVersion.split("\\.");
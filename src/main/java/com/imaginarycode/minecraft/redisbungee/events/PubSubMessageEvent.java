@@ -1,7 +1,7 @@
 package com.imaginarycode.minecraft.redisbungee.events;
 
-import lombok.RequiredArgsConstructor;
-import lombok.ToString;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import net.md_5.bungee.api.plugin.Event;
 
 /**
@@ -11,17 +11,35 @@ import net.md_5.bungee.api.plugin.Event;
  *
  * @since 0.2.6
  */
-@RequiredArgsConstructor
-@ToString
 public class PubSubMessageEvent extends Event {
     private final String channel;
-    private final String message;
+    private final Supplier<String> message;
+
+    public PubSubMessageEvent(String channel, String message) {
+        this.channel = channel;
+        this.message = Suppliers.ofInstance(message);
+    }
+
+    /**
+     * Creates an event whose message is only built the first time a listener asks for it.
+     *
+     * @since 0.5
+     */
+    public PubSubMessageEvent(String channel, Supplier<String> message) {
+        this.channel = channel;
+        this.message = Suppliers.memoize(message);
+    }
 
     public String getChannel() {
         return channel;
     }
 
     public String getMessage() {
-        return message;
+        return message.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PubSubMessageEvent(channel=" + channel + ", message=" + getMessage() + ")";
     }
 }
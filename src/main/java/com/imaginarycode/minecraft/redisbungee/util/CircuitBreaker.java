@@ -0,0 +1,54 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+/**
+ * Stops calls to a failing service for a while. After {@code failureThreshold} failures in a row the breaker opens
+ * and refuses every call for {@code openMillis}. After that one trial call is let through: if it succeeds the
+ * breaker closes, if it fails the breaker stays open for another {@code openMillis}.
+ *
+ * @since 0.5
+ */
+public class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openMillis;
+    private int consecutiveFailures;
+    private long openUntil;
+    private long rejected;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public synchronized boolean allowRequest() {
+        if (consecutiveFailures < failureThreshold)
+            return true;
+        long now = System.currentTimeMillis();
+        if (now >= openUntil) {
+            // Let this one through as the trial, and keep refusing the others until it is over.
+            openUntil = now + openMillis;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        if (++consecutiveFailures >= failureThreshold)
+            openUntil = System.currentTimeMillis() + openMillis;
+    }
+
+    public synchronized boolean isOpen() {
+        return consecutiveFailures >= failureThreshold;
+    }
+
+    /**
+     * @return how many calls have been refused
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
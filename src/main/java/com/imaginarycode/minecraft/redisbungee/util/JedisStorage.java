@@ -0,0 +1,255 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link RedisStorage} on top of Jedis connection pools: one for the primary, and one for each read replica.
+ * <p>
+ * Code that needs a connection of its own, for transactions, scans or pub/sub, takes one from {@link #getPool()} or
+ * {@link #getReadResource()}.
+ *
+ * @since 0.5
+ */
+public class JedisStorage implements RedisStorage {
+    private final JedisPoolConfig poolConfig;
+    private final String password;
+    @Getter
+    private volatile JedisPool pool;
+    @Getter
+    private volatile HostAndPort primaryAddress;
+    private volatile List<JedisPool> readPools = ImmutableList.of();
+    private final Map<HostAndPort, JedisPool> readPoolsByAddress = new HashMap<>();
+    private final AtomicInteger nextReadPool = new AtomicInteger();
+
+    public JedisStorage(JedisPoolConfig poolConfig, String password, HostAndPort primary) {
+        this.poolConfig = poolConfig;
+        this.password = password;
+        this.primaryAddress = primary;
+        this.pool = createPool(primary);
+    }
+
+    /**
+     * Returns a connection for a read that tolerates slightly stale data. Reads are spread over the configured read
+     * replicas, and go to the primary when there are none or the chosen one is unreachable. Never write through
+     * this connection.
+     */
+    public Jedis getReadResource() {
+        List<JedisPool> pools = readPools;
+        if (!pools.isEmpty()) {
+            JedisPool readPool = pools.get((nextReadPool.getAndIncrement() & Integer.MAX_VALUE) % pools.size());
+            try {
+                return readPool.getResource();
+            } catch (JedisException ignored) {
+            }
+        }
+        return pool.getResource();
+    }
+
+    public int getReadPoolCount() {
+        return readPools.size();
+    }
+
+    /**
+     * Replaces the read replicas with the ones at {@code addresses}, keeping the pools of those we already had.
+     */
+    public synchronized void updateReadPools(Collection<HostAndPort> addresses) {
+        Set<HostAndPort> wanted = new HashSet<>(addresses);
+        wanted.remove(primaryAddress);
+        for (Iterator<Map.Entry<HostAndPort, JedisPool>> it = readPoolsByAddress.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<HostAndPort, JedisPool> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().destroy();
+                it.remove();
+            }
+        }
+        for (HostAndPort address : wanted) {
+            if (!readPoolsByAddress.containsKey(address))
+                readPoolsByAddress.put(address, createPool(address));
+        }
+        readPools = ImmutableList.copyOf(readPoolsByAddress.values());
+    }
+
+    /**
+     * Points the primary pool at {@code address}, if it isn't already.
+     *
+     * @return whether the primary moved
+     */
+    public synchronized boolean switchPrimary(HostAndPort address) {
+        if (address.equals(primaryAddress))
+            return false;
+        JedisPool old = pool;
+        primaryAddress = address;
+        pool = createPool(address);
+        old.destroy();
+        return true;
+    }
+
+    private JedisPool createPool(HostAndPort address) {
+        return new JedisPool(poolConfig, address.getHost(), address.getPort(), 0, password);
+    }
+
+    @Override
+    public String scriptLoad(String script) {
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.scriptLoad(script);
+        }
+    }
+
+    @Override
+    public Object eval(String script, String sha, List<String> keys, List<String> args) {
+        try (Jedis jedis = pool.getResource()) {
+            try {
+                return jedis.evalsha(sha, keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage().startsWith("NOSCRIPT"))
+                    return jedis.eval(script, keys, args);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public Object evalBinary(String script, String sha, List<byte[]> keys, List<byte[]> args) {
+        try (Jedis jedis = pool.getResource()) {
+            try {
+                return jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage().startsWith("NOSCRIPT"))
+                    return jedis.eval(SafeEncoder.encode(script), keys, args);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public String getStale(String key) {
+        try (Jedis jedis = getReadResource()) {
+            return jedis.get(key);
+        }
+    }
+
+    @Override
+    public List<String> hmgetStale(String key, String... fields) {
+        try (Jedis jedis = getReadResource()) {
+            return jedis.hmget(key, fields);
+        }
+    }
+
+    @Override
+    public List<List<String>> hmgetStale(List<String> keys, String... fields) {
+        List<Response<List<String>>> responses = new ArrayList<>(keys.size());
+        try (Jedis jedis = getReadResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (String key : keys) {
+                responses.add(pipeline.hmget(key, fields));
+            }
+            pipeline.sync();
+        }
+        List<List<String>> values = new ArrayList<>(responses.size());
+        for (Response<List<String>> response : responses) {
+            values.add(response.get());
+        }
+        return values;
+    }
+
+    @Override
+    public List<byte[]> hgetStale(List<byte[]> keys, List<byte[]> fields) {
+        List<Response<byte[]>> responses = new ArrayList<>(keys.size());
+        try (Jedis jedis = getReadResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < keys.size(); i++) {
+                responses.add(pipeline.hget(keys.get(i), fields.get(i)));
+            }
+            pipeline.sync();
+        }
+        List<byte[]> values = new ArrayList<>(responses.size());
+        for (Response<byte[]> response : responses) {
+            values.add(response.get());
+        }
+        return values;
+    }
+
+    @Override
+    public Batch batch() {
+        return new PipelineBatch();
+    }
+
+    @Override
+    public void close() {
+        updateReadPools(Collections.<HostAndPort>emptyList());
+        pool.destroy();
+    }
+
+    /**
+     * Queues the writes in memory, so no connection is held until they are sent.
+     */
+    private class PipelineBatch implements Batch {
+        private final List<Op> ops = new ArrayList<>();
+
+        @Override
+        public void hset(final byte[] key, final byte[] field, final byte[] value) {
+            ops.add(new Op() {
+                @Override
+                public void apply(Pipeline pipeline) {
+                    pipeline.hset(key, field, value);
+                }
+            });
+        }
+
+        @Override
+        public void hsetnx(final byte[] key, final byte[] field, final byte[] value) {
+            ops.add(new Op() {
+                @Override
+                public void apply(Pipeline pipeline) {
+                    pipeline.hsetnx(key, field, value);
+                }
+            });
+        }
+
+        @Override
+        public void hdel(final byte[] key, final byte[]... fields) {
+            ops.add(new Op() {
+                @Override
+                public void apply(Pipeline pipeline) {
+                    pipeline.hdel(key, fields);
+                }
+            });
+        }
+
+        @Override
+        public void hdel(final String key, final String... fields) {
+            ops.add(new Op() {
+                @Override
+                public void apply(Pipeline pipeline) {
+                    pipeline.hdel(key, fields);
+                }
+            });
+        }
+
+        @Override
+        public void execute() {
+            if (ops.isEmpty())
+                return;
+            try (Jedis jedis = pool.getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                for (Op op : ops) {
+                    op.apply(pipeline);
+                }
+                pipeline.sync();
+            }
+            ops.clear();
+        }
+    }
+
+    private interface Op {
+        void apply(Pipeline pipeline);
+    }
+}
@@ -1,21 +1,21 @@
 package com.imaginarycode.minecraft.redisbungee.util;
 
-import com.imaginarycode.minecraft.redisbungee.RedisBungee;
 import lombok.RequiredArgsConstructor;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
 
 import java.util.List;
 
 @RequiredArgsConstructor
 public class LuaManager {
-    private final RedisBungee plugin;
+    private final RedisStorage storage;
 
     public Script createScript(String script) {
-        try (Jedis jedis = plugin.getPool().getResource()) {
-            String hash = jedis.scriptLoad(script);
-            return new Script(script, hash);
-        }
+        String hash = storage.scriptLoad(script);
+        return new Script(script, hash);
     }
 
     @RequiredArgsConstructor
@@ -24,17 +24,56 @@ public class LuaManager {
         private final String hashed;
 
         public Object eval(List<String> keys, List<String> args) {
+            return storage.eval(script, hashed, keys, args);
+        }
+
+        /**
+         * Runs the script with binary keys and arguments, for values that aren't text.
+         */
+        public Object evalBinary(List<byte[]> keys, List<byte[]> args) {
+            return storage.evalBinary(script, hashed, keys, args);
+        }
+
+        /**
+         * Runs the script on a connection the caller already holds, rather than taking another from the pool.
+         */
+        public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+            Object data;
+
+            try {
+                data = jedis.evalsha(hashed, keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage().startsWith("NOSCRIPT")) {
+                    data = jedis.eval(script, keys, args);
+                } else {
+                    throw e;
+                }
+            }
+
+            return data;
+        }
+
+        /**
+         * Queues the script on a pipeline. The whole script is sent, since a NOSCRIPT error couldn't be retried once
+         * the pipeline has been synced.
+         */
+        public Response<Object> eval(Pipeline pipeline, List<String> keys, List<String> args) {
+            return pipeline.eval(script, keys, args);
+        }
+
+        /**
+         * Runs the script with binary keys and arguments on a connection the caller already holds.
+         */
+        public Object evalBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
             Object data;
 
-            try (Jedis jedis = plugin.getPool().getResource()) {
-                try {
-                    data = jedis.evalsha(hashed, keys, args);
-                } catch (JedisDataException e) {
-                    if (e.getMessage().startsWith("NOSCRIPT")) {
-                        data = jedis.eval(script, keys, args);
-                    } else {
-                        throw e;
-                    }
+            try {
+                data = jedis.evalsha(SafeEncoder.encode(hashed), keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage().startsWith("NOSCRIPT")) {
+                    data = jedis.eval(SafeEncoder.encode(script), keys, args);
+                } else {
+                    throw e;
                 }
             }
 
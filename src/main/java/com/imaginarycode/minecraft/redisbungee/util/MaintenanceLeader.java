@@ -0,0 +1,79 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import lombok.Getter;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Elects the one proxy that does the work the whole network shares: cleaning up after proxies that have gone away,
+ * and sweeping uuid-cache. Without it every proxy would do the same work at the same time and race the others to do
+ * it.
+ * <p>
+ * The leader is whoever holds the {@code maintenance} lease. Every proxy tries to take or renew it with each
+ * heartbeat, so if the leader goes away another proxy takes over within the lease time. Each new leader gets a higher
+ * fencing token, which the cleanup script checks before changing anything.
+ *
+ * @since 0.5
+ */
+public class MaintenanceLeader {
+    public static final String LEASE = "maintenance";
+    private static final long LEASE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final RedisBungee plugin;
+    private final RedisLease lease;
+    private final String proxyId;
+    @Getter
+    private volatile boolean leader;
+    @Getter
+    private volatile String holder;
+
+    public MaintenanceLeader(RedisBungee plugin, LuaManager.Script leaseScript, String proxyId) {
+        this.plugin = plugin;
+        this.proxyId = proxyId;
+        this.lease = new RedisLease(plugin, leaseScript, RedisKeys.lease(LEASE), proxyId, RedisKeys.fence(LEASE));
+    }
+
+    /**
+     * Takes or renews the lease, and notes who holds it. Called with every heartbeat.
+     */
+    public void renew() {
+        try {
+            boolean held = lease.acquire(LEASE_MILLIS);
+            if (held != leader) {
+                if (held)
+                    plugin.getLogger().info("本代理现在负责全网维护任务 (令牌: " + lease.getFence() + ")");
+                else
+                    plugin.getLogger().info("本代理不再负责全网维护任务");
+            }
+            leader = held;
+            holder = held ? proxyId : lease.getHolder();
+        } catch (JedisException e) {
+            leader = false;
+            plugin.getLogger().log(Level.WARNING, "无法续期维护租约", e);
+        }
+    }
+
+    /**
+     * Returns the fencing token we got when we last became leader.
+     */
+    public long getFence() {
+        return lease.getFence();
+    }
+
+    /**
+     * Gives up the lease, so another proxy can take over straight away instead of waiting for it to expire.
+     */
+    public void stop() {
+        if (!leader)
+            return;
+        leader = false;
+        try {
+            lease.release();
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.WARNING, "无法释放维护租约", e);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link RedisStorage} on top of a few Netty connections to each server, instead of a pooled connection per
+ * caller. Any number of threads share a connection without waiting for each other: their commands are written as
+ * they come, flushed together once per turn of the event loop, and matched to the replies in the order they were
+ * sent. Concurrent callers so end up pipelined with each other.
+ * <p>
+ * Code that needs a connection of its own, for transactions, scans or pub/sub, still uses the Jedis pools of
+ * {@link JedisStorage}, which this follows through failovers and replica changes. Failures are thrown as the same
+ * Jedis exceptions, so callers handle both storages alike.
+ *
+ * @since 0.5
+ */
+public class NettyStorage extends JedisStorage {
+    private static final int CONNECTIONS = 4;
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final long REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final String password;
+    private final EventLoopGroup group;
+    private volatile Endpoint primary;
+    private volatile List<Endpoint> replicas = ImmutableList.of();
+    private final Map<HostAndPort, Endpoint> replicasByAddress = new HashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public NettyStorage(JedisPoolConfig poolConfig, String password, HostAndPort primary) {
+        super(poolConfig, password, primary);
+        this.password = password;
+        this.group = new NioEventLoopGroup(1,
+                new ThreadFactoryBuilder().setNameFormat("RedisBungee Netty Thread #%d").setDaemon(true).build());
+        this.primary = new Endpoint(primary);
+    }
+
+    @Override
+    public synchronized void updateReadPools(Collection<HostAndPort> addresses) {
+        super.updateReadPools(addresses);
+        Set<HostAndPort> wanted = new HashSet<>(addresses);
+        wanted.remove(getPrimaryAddress());
+        for (Iterator<Map.Entry<HostAndPort, Endpoint>> it = replicasByAddress.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<HostAndPort, Endpoint> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+        for (HostAndPort address : wanted) {
+            if (!replicasByAddress.containsKey(address))
+                replicasByAddress.put(address, new Endpoint(address));
+        }
+        replicas = ImmutableList.copyOf(replicasByAddress.values());
+    }
+
+    @Override
+    public synchronized boolean switchPrimary(HostAndPort address) {
+        if (!super.switchPrimary(address))
+            return false;
+        Endpoint old = primary;
+        primary = new Endpoint(address);
+        old.close();
+        return true;
+    }
+
+    /**
+     * Returns a connection for a read that tolerates slightly stale data, the same way
+     * {@link JedisStorage#getReadResource()} picks one.
+     */
+    private Connection readConnection() {
+        List<Endpoint> endpoints = replicas;
+        if (!endpoints.isEmpty()) {
+            Endpoint replica = endpoints.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size());
+            try {
+                return replica.connection();
+            } catch (JedisException ignored) {
+            }
+        }
+        return primary.connection();
+    }
+
+    @Override
+    public String scriptLoad(String script) {
+        return string(await(primary.connection().send(bytes("SCRIPT"), bytes("LOAD"), bytes(script))));
+    }
+
+    @Override
+    public Object eval(String script, String sha, List<String> keys, List<String> args) {
+        return strings(evalBinary(script, sha, encodeAll(keys), encodeAll(args)));
+    }
+
+    @Override
+    public Object evalBinary(String script, String sha, List<byte[]> keys, List<byte[]> args) {
+        Connection connection = primary.connection();
+        try {
+            return await(connection.send(evalCommand("EVALSHA", sha, keys, args)));
+        } catch (JedisDataException e) {
+            if (e.getMessage().startsWith("NOSCRIPT"))
+                return await(connection.send(evalCommand("EVAL", script, keys, args)));
+            throw e;
+        }
+    }
+
+    private static byte[][] evalCommand(String command, String script, List<byte[]> keys, List<byte[]> args) {
+        byte[][] parts = new byte[3 + keys.size() + args.size()][];
+        parts[0] = bytes(command);
+        parts[1] = bytes(script);
+        parts[2] = bytes(Integer.toString(keys.size()));
+        int i = 3;
+        for (byte[] key : keys) {
+            parts[i++] = key;
+        }
+        for (byte[] arg : args) {
+            parts[i++] = arg;
+        }
+        return parts;
+    }
+
+    @Override
+    public String getStale(String key) {
+        return string(await(readConnection().send(bytes("GET"), bytes(key))));
+    }
+
+    @Override
+    public List<String> hmgetStale(String key, String... fields) {
+        return stringList(await(readConnection().send(hmgetCommand(key, fields))));
+    }
+
+    @Override
+    public List<List<String>> hmgetStale(List<String> keys, String... fields) {
+        // Sent on one connection, so the replies come back in one round trip.
+        Connection connection = readConnection();
+        List<ListenableFuture<Object>> replies = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            replies.add(connection.send(hmgetCommand(key, fields)));
+        }
+        List<List<String>> values = new ArrayList<>(replies.size());
+        for (ListenableFuture<Object> reply : replies) {
+            values.add(stringList(await(reply)));
+        }
+        return values;
+    }
+
+    private static byte[][] hmgetCommand(String key, String[] fields) {
+        byte[][] parts = new byte[2 + fields.length][];
+        parts[0] = bytes("HMGET");
+        parts[1] = bytes(key);
+        for (int i = 0; i < fields.length; i++) {
+            parts[2 + i] = bytes(fields[i]);
+        }
+        return parts;
+    }
+
+    @Override
+    public List<byte[]> hgetStale(List<byte[]> keys, List<byte[]> fields) {
+        Connection connection = readConnection();
+        List<ListenableFuture<Object>> replies = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            replies.add(connection.send(bytes("HGET"), keys.get(i), fields.get(i)));
+        }
+        List<byte[]> values = new ArrayList<>(replies.size());
+        for (ListenableFuture<Object> reply : replies) {
+            values.add((byte[]) await(reply));
+        }
+        return values;
+    }
+
+    @Override
+    public Batch batch() {
+        return new CommandBatch();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        primary.close();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for a reply, throwing what Jedis would have thrown if it didn't come.
+     */
+    private static Object await(ListenableFuture<Object> reply) {
+        try {
+            return reply.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("等待Redis回复时被中断", e);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("等待Redis回复超时", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JedisException)
+                throw (JedisException) e.getCause();
+            throw new JedisConnectionException(e.getCause());
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return SafeEncoder.encode(string);
+    }
+
+    private static List<byte[]> encodeAll(List<String> strings) {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        for (String string : strings) {
+            encoded.add(bytes(string));
+        }
+        return encoded;
+    }
+
+    private static String string(Object reply) {
+        return reply == null ? null : SafeEncoder.encode((byte[]) reply);
+    }
+
+    private static List<String> stringList(Object reply) {
+        List<?> elements = (List<?>) reply;
+        List<String> strings = new ArrayList<>(elements.size());
+        for (Object element : elements) {
+            strings.add(string(element));
+        }
+        return strings;
+    }
+
+    /**
+     * Converts a script's reply the way {@code Jedis.eval} does, with text in place of bytes.
+     */
+    private static Object strings(Object reply) {
+        if (reply instanceof byte[])
+            return SafeEncoder.encode((byte[]) reply);
+        if (reply instanceof List) {
+            List<?> elements = (List<?>) reply;
+            List<Object> converted = new ArrayList<>(elements.size());
+            for (Object element : elements) {
+                converted.add(strings(element));
+            }
+            return converted;
+        }
+        return reply;
+    }
+
+    /**
+     * The connections to one server, used in turn and opened again when they are found closed.
+     */
+    private class Endpoint {
+        private final HostAndPort address;
+        private final Connection[] connections = new Connection[CONNECTIONS];
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile boolean closed;
+
+        Endpoint(HostAndPort address) {
+            this.address = address;
+        }
+
+        Connection connection() {
+            int slot = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+            synchronized (connections) {
+                Connection connection = connections[slot];
+                if (connection == null || !connection.isOpen())
+                    connections[slot] = connection = connect();
+                return connection;
+            }
+        }
+
+        private Connection connect() {
+            if (closed)
+                throw new JedisConnectionException("到" + address + "的连接已关闭");
+            final Connection connection = new Connection();
+            ChannelFuture future = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) throws Exception {
+                            channel.pipeline().addLast(new RespCodec.Decoder(), connection);
+                        }
+                    })
+                    .connect(address.getHost(), address.getPort());
+            if (!future.awaitUninterruptibly(CONNECT_TIMEOUT * 2) || !future.isSuccess()) {
+                future.channel().close();
+                throw new JedisConnectionException("无法连接到" + address, future.cause());
+            }
+            connection.channel = future.channel();
+            if (password != null) {
+                try {
+                    await(connection.send(bytes("AUTH"), bytes(password)));
+                } catch (JedisException e) {
+                    connection.channel.close();
+                    throw e;
+                }
+            }
+            return connection;
+        }
+
+        void close() {
+            synchronized (connections) {
+                closed = true;
+                for (Connection connection : connections) {
+                    if (connection != null)
+                        connection.channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection, shared by every thread that sends a command over it.
+     */
+    private static class Connection extends SimpleChannelInboundHandler<Object> {
+        // Replies come back in the order the commands were written, so each goes to the oldest caller still waiting.
+        private final Queue<SettableFuture<Object>> pending = new ArrayDeque<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                channel.flush();
+            }
+        };
+        private volatile Channel channel;
+        private boolean open = true;
+
+        synchronized boolean isOpen() {
+            return open && channel.isActive();
+        }
+
+        ListenableFuture<Object> send(byte[]... command) {
+            SettableFuture<Object> reply = SettableFuture.create();
+            ByteBuf buf = channel.alloc().buffer();
+            RespCodec.encode(buf, command);
+            synchronized (this) {
+                if (!open) {
+                    buf.release();
+                    reply.setException(new JedisConnectionException("Redis连接已断开"));
+                    return reply;
+                }
+                // Queued and written under the same lock, so the queue stays in the order the commands go out.
+                pending.add(reply);
+                channel.write(buf).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+            // Commands written before the event loop gets to this are sent in the same flush.
+            if (flushScheduled.compareAndSet(false, true))
+                channel.eventLoop().execute(flush);
+            return reply;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
+            SettableFuture<Object> reply;
+            synchronized (this) {
+                reply = pending.poll();
+            }
+            if (reply == null)
+                return;
+            if (msg instanceof JedisDataException)
+                reply.setException((JedisDataException) msg);
+            else
+                reply.set(msg == RespCodec.NIL ? null : msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            List<SettableFuture<Object>> failed;
+            synchronized (this) {
+                open = false;
+                failed = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (SettableFuture<Object> reply : failed) {
+                reply.setException(new JedisConnectionException("Redis连接已断开"));
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Queues the writes in memory, and sends them together on one connection when executed.
+     */
+    private class CommandBatch implements Batch {
+        private final List<byte[][]> commands = new ArrayList<>();
+
+        @Override
+        public void hset(byte[] key, byte[] field, byte[] value) {
+            commands.add(new byte[][]{bytes("HSET"), key, field, value});
+        }
+
+        @Override
+        public void hsetnx(byte[] key, byte[] field, byte[] value) {
+            commands.add(new byte[][]{bytes("HSETNX"), key, field, value});
+        }
+
+        @Override
+        public void hdel(byte[] key, byte[]... fields) {
+            byte[][] command = new byte[2 + fields.length][];
+            command[0] = bytes("HDEL");
+            command[1] = key;
+            System.arraycopy(fields, 0, command, 2, fields.length);
+            commands.add(command);
+        }
+
+        @Override
+        public void hdel(String key, String... fields) {
+            byte[][] encoded = new byte[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                encoded[i] = bytes(fields[i]);
+            }
+            hdel(bytes(key), encoded);
+        }
+
+        @Override
+        public void execute() {
+            if (commands.isEmpty())
+                return;
+            Connection connection = primary.connection();
+            List<ListenableFuture<Object>> replies = new ArrayList<>(commands.size());
+            for (byte[][] command : commands) {
+                replies.add(connection.send(command));
+            }
+            // Like a Jedis pipeline, an error in one write doesn't stop the others or fail the batch.
+            for (ListenableFuture<Object> reply : replies) {
+                try {
+                    await(reply);
+                } catch (JedisDataException ignored) {
+                }
+            }
+            commands.clear();
+        }
+    }
+}
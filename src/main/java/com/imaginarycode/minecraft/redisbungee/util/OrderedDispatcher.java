@@ -0,0 +1,118 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a fixed set of serial lanes. Tasks submitted with equal keys always land on the same lane, so they
+ * run one at a time and in submission order. When a lane is full, {@link #dispatch(Object, Runnable)} blocks until
+ * it has room.
+ *
+ * @since 0.5
+ */
+public class OrderedDispatcher {
+    private final Logger logger;
+    private final Lane[] lanes;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private volatile boolean running = true;
+
+    public OrderedDispatcher(String name, int laneCount, int laneCapacity, Logger logger) {
+        this.logger = logger;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(new ArrayBlockingQueue<Runnable>(laneCapacity));
+            Thread thread = new Thread(lanes[i], name + " #" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void dispatch(Object key, Runnable task) {
+        if (!running)
+            return;
+        BlockingQueue<Runnable> queue = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].queue;
+        if (!queue.offer(task)) {
+            stalls.incrementAndGet();
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        dispatched.incrementAndGet();
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Lane lane : lanes) {
+            lane.queue.clear();
+            lane.queue.offer(new Runnable() {
+                @Override
+                public void run() {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    public int getDeepestLane() {
+        int deepest = 0;
+        for (Lane lane : lanes) {
+            deepest = Math.max(deepest, lane.queue.size());
+        }
+        return deepest;
+    }
+
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return how many times a submitter had to wait for a full lane
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+
+        private Lane(BlockingQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.log(Level.SEVERE, "处理PubSub消息时出错", e);
+                }
+            }
+        }
+    }
+}
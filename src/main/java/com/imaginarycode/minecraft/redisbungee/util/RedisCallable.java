@@ -6,6 +6,7 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 @AllArgsConstructor
@@ -14,32 +15,45 @@ public abstract class RedisCallable<T> implements Callable<T>, Runnable {
 
     @Override
     public T call() {
-        return run(false);
-    }
+        try {
+            return attempt();
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法建立连接", e);
+        }
 
-    public void run() {
-        call();
+        // The pool hands out a fresh connection, so retry straight away instead of tying up this thread.
+        try {
+            return attempt();
+        } catch (JedisConnectionException e) {
+            throw new RuntimeException("任务运行失败", e);
+        }
     }
 
-    private T run(boolean retry) {
-        try (Jedis jedis = plugin.getPool().getResource()) {
-            return call(jedis);
+    public void run() {
+        try {
+            attempt();
         } catch (JedisConnectionException e) {
             plugin.getLogger().log(Level.SEVERE, "无法建立连接", e);
 
-            if (!retry) {
-                // Wait one second before retrying the task
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    throw new RuntimeException("任务运行失败", e1);
+            // Retry the task in one second, without holding a scheduler thread while we wait.
+            plugin.getProxy().getScheduler().schedule(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        attempt();
+                    } catch (JedisConnectionException e1) {
+                        plugin.getLogger().log(Level.SEVERE, "任务运行失败", e1);
+                    }
                 }
-                return run(true);
-            }
+            }, 1, TimeUnit.SECONDS);
         }
+    }
 
-        throw new RuntimeException("任务运行失败");
+    private T attempt() {
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            return call(jedis);
+        }
     }
 
     protected abstract T call(Jedis jedis);
-}
\ No newline at end of file
+}
@@ -0,0 +1,197 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.hash.Hashing;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.util.UUID;
+
+/**
+ * The names of every key and PubSub channel RedisBungee uses.
+ * <p>
+ * All keys and channels start with the configured {@code redis-key-prefix}, which is empty by default, so networks
+ * with different prefixes can share one Redis without seeing each other's data or messages.
+ * <p>
+ * Redis Cluster only allows multi-key commands and scripts on keys in the same hash slot, so a cluster needs a prefix
+ * with a hash tag such as {@code {redisbungee}:}. That puts every key in one slot, on one node, and a cluster gives no
+ * scale-out beyond it. Splitting them isn't possible as things stand: the login, cleanup, integrity and
+ * server-to-players scripts all read the player sets of every proxy together with the players' hashes, and every
+ * connection goes to the one node named by {@code redis-server}.
+ *
+ * @since 0.5
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class RedisKeys {
+    /**
+     * How many hashes the uuid-cache names, and separately the UUIDs, are spread across. Redis keeps a hash of up to
+     * 128 small fields in its compact listpack encoding, so this holds about a million players before the average
+     * bucket outgrows it. Changing it loses every stored entry.
+     */
+    public static final int UUID_CACHE_BUCKETS = 8192;
+    /**
+     * What comes after the server in a {@link #serverPlayers} key, see {@link #serverPlayersHead}.
+     */
+    public static final String SERVER_PLAYERS_TAIL = ":usersOnline";
+    private static volatile String prefix = "";
+
+    public static void setPrefix(String prefix) {
+        RedisKeys.prefix = prefix == null ? "" : prefix;
+    }
+
+    public static String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns whether the prefix holds a hash tag, that is a non-empty section between the first '{' and the
+     * following '}'. Only then does Redis Cluster hash every key to the same slot.
+     */
+    public static boolean isSlotLocal() {
+        int start = prefix.indexOf('{');
+        if (start == -1)
+            return false;
+        int end = prefix.indexOf('}', start + 1);
+        return end > start + 1;
+    }
+
+    /**
+     * Returns the name a PubSub channel has on the wire.
+     */
+    public static String channel(String name) {
+        return prefix + name;
+    }
+
+    /**
+     * Returns the name of a channel as it came off the wire, without our prefix.
+     */
+    public static String channelName(String channel) {
+        return channel.startsWith(prefix) ? channel.substring(prefix.length()) : channel;
+    }
+
+    public static String heartbeats() {
+        return prefix + "heartbeats";
+    }
+
+    public static String proxyCounts() {
+        return prefix + "proxy-counts";
+    }
+
+    public static String dataProtocol() {
+        return prefix + "data-protocol";
+    }
+
+    /**
+     * Returns the key of the single hash uuid-cache was kept in before it was split into buckets. It is only read
+     * from until the sweeper has moved everything out of it.
+     */
+    public static String uuidCache() {
+        return prefix + "uuid-cache";
+    }
+
+    public static String uuidCacheNames(int bucket) {
+        return prefix + "uuid-cache:names:" + bucket;
+    }
+
+    public static String uuidCacheUuids(int bucket) {
+        return prefix + "uuid-cache:uuids:" + bucket;
+    }
+
+    /**
+     * Returns the bucket a uuid-cache field belongs in.
+     */
+    public static int uuidCacheBucket(byte[] field) {
+        return (Hashing.murmur3_32().hashBytes(field).asInt() & Integer.MAX_VALUE) % UUID_CACHE_BUCKETS;
+    }
+
+    /**
+     * Returns the key of the token bucket every proxy draws from before calling the Mojang API.
+     */
+    public static String mojangRateLimit() {
+        return prefix + "mojang-rate-limit";
+    }
+
+    /**
+     * Returns the key of the lease that decides which proxy runs the job called {@code name}.
+     */
+    public static String lease(String name) {
+        return prefix + "lease:" + name;
+    }
+
+    /**
+     * Returns the key of the counter the fencing tokens of the lease called {@code name} are taken from.
+     */
+    public static String fence(String name) {
+        return prefix + "fence:" + name;
+    }
+
+    /**
+     * Returns the key the uuid-cache sweeper sets once it has emptied the old {@link #uuidCache} hash.
+     */
+    public static String uuidCacheMigrated() {
+        return prefix + "uuid-cache-migrated";
+    }
+
+    /**
+     * Returns the key of the hash holding how far the uuid-cache sweeper has got.
+     */
+    public static String uuidCacheSweep() {
+        return prefix + "uuid-cache-sweep";
+    }
+
+    public static String player(String uuid) {
+        return prefix + "player:" + uuid;
+    }
+
+    public static String player(UUID uuid) {
+        return player(uuid.toString());
+    }
+
+    public static String proxyPlayers(String proxy) {
+        return prefix + "proxy:" + proxy + ":usersOnline";
+    }
+
+    /**
+     * Returns the key of the XOR of the hashes of every member of {@link #proxyPlayers}, which the scripts changing
+     * the set keep up to date.
+     */
+    public static String proxyPlayersChecksum(String proxy) {
+        return prefix + "proxy:" + proxy + ":usersOnline:checksum";
+    }
+
+    /**
+     * Returns the key of the counter that is incremented every time an instance starts as {@code proxy}.
+     */
+    public static String epoch(String proxy) {
+        return prefix + "proxy:" + proxy + ":epoch";
+    }
+
+    /**
+     * Returns the key that exists for as long as {@code proxy} keeps sending heartbeats.
+     */
+    public static String proxyAlive(String proxy) {
+        return prefix + "proxy:" + proxy + ":alive";
+    }
+
+    /**
+     * Returns the key of the set holding the names of the servers {@code proxy} has a {@link #serverPlayers} set for.
+     */
+    public static String proxyServers(String proxy) {
+        return prefix + "proxy:" + proxy + ":servers";
+    }
+
+    /**
+     * Returns the key of the set holding the players on {@code server} that are connected through {@code proxy}.
+     */
+    public static String serverPlayers(String proxy, String server) {
+        return serverPlayersHead(proxy) + server + SERVER_PLAYERS_TAIL;
+    }
+
+    /**
+     * Returns what comes before the server in every {@link #serverPlayers} key of {@code proxy}, and
+     * {@link #SERVER_PLAYERS_TAIL} what comes after it. Scripts that only learn the servers from Redis are given both,
+     * so that they never build a key name themselves.
+     */
+    public static String serverPlayersHead(String proxy) {
+        return prefix + "proxy:" + proxy + ":server:";
+    }
+}
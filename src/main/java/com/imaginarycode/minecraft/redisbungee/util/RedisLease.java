@@ -0,0 +1,83 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A lease held in Redis, used to make sure only one proxy at a time does some piece of work. The lease expires on
+ * its own if its holder stops renewing it, so a proxy that dies can't hold it forever.
+ * <p>
+ * A lease can also hand out fencing tokens. Every time it is taken afresh, a counter in Redis is incremented and the
+ * new value becomes the holder's token. A script can compare a token against the counter to turn away a proxy that
+ * has lost the lease without noticing yet, say after a long pause.
+ *
+ * @since 0.5
+ */
+public class RedisLease {
+    private final RedisBungee plugin;
+    private final LuaManager.Script script;
+    @Getter
+    private final String key;
+    private final String token;
+    private final String fenceKey;
+    @Getter
+    private volatile long fence;
+
+    /**
+     * @param owner the proxy that will hold the lease; a random suffix tells its instances apart across restarts
+     */
+    public RedisLease(RedisBungee plugin, LuaManager.Script script, String key, String owner) {
+        this(plugin, script, key, owner, null);
+    }
+
+    /**
+     * @param fenceKey the counter the fencing tokens are taken from
+     */
+    public RedisLease(RedisBungee plugin, LuaManager.Script script, String key, String owner, String fenceKey) {
+        this.plugin = plugin;
+        this.script = script;
+        this.key = key;
+        this.token = owner + ":" + UUID.randomUUID();
+        this.fenceKey = fenceKey;
+    }
+
+    /**
+     * Takes the lease if nobody holds it, or renews it if we already do. Taking it and drawing a new fencing token
+     * happen in one script, so a proxy that stalls in between can't end up with the newest token but no lease.
+     *
+     * @return whether we hold the lease now
+     */
+    public boolean acquire(long ttlMillis) {
+        List<String> keys = fenceKey == null ? ImmutableList.of(key) : ImmutableList.of(key, fenceKey);
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            List<?> result = (List<?>) script.eval(jedis, keys, ImmutableList.of(token, String.valueOf(ttlMillis), "acquire"));
+            if (result.size() > 1)
+                fence = (Long) result.get(1);
+            return (Long) result.get(0) == 1;
+        }
+    }
+
+    /**
+     * Gives the lease up if we hold it.
+     */
+    public void release() {
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            script.eval(jedis, ImmutableList.of(key), ImmutableList.of(token, "0"));
+        }
+    }
+
+    /**
+     * Returns the proxy holding the lease, or null if nobody does.
+     */
+    public String getHolder() {
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            String holder = jedis.get(key);
+            return holder == null ? null : holder.substring(0, holder.lastIndexOf(':'));
+        }
+    }
+}
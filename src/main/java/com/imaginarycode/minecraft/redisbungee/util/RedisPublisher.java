@@ -0,0 +1,199 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Publishes messages from a bounded queue over one dedicated connection, pipelining whatever has queued up since
+ * the last flush. Publishing never blocks the caller; if the queue is full the message is dropped and its future
+ * fails.
+ *
+ * @since 0.5
+ */
+public class RedisPublisher implements Runnable {
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final RedisBungee plugin;
+    private final BlockingQueue<PendingMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile boolean running = true;
+    private volatile boolean reconnect;
+    private final Thread thread;
+    private Jedis jedis;
+
+    public RedisPublisher(RedisBungee plugin) {
+        this.plugin = plugin;
+        this.thread = new Thread(this, "RedisBungee Publisher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops accepting messages, publishes everything still queued and closes the connection.
+     */
+    public void stop() {
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes the next batch go out on a fresh connection from the pool, for when the pool now points elsewhere.
+     */
+    public void reconnect() {
+        reconnect = true;
+    }
+
+    /**
+     * Publishes {@code message} on {@code channel}, which is prefixed as configured on the way out.
+     */
+    public ListenableFuture<Long> publish(String channel, String message) {
+        return publish(channel, SafeEncoder.encode(message));
+    }
+
+    public ListenableFuture<Long> publish(String channel, byte[] message) {
+        return enqueue(SafeEncoder.encode(RedisKeys.channel(channel)), message);
+    }
+
+    private ListenableFuture<Long> enqueue(byte[] channel, byte[] message) {
+        if (!running) {
+            return Futures.immediateFailedFuture(new IllegalStateException("Publisher has been stopped"));
+        }
+        PendingMessage pending = new PendingMessage(channel, message, SettableFuture.<Long>create());
+        if (!queue.offer(pending)) {
+            dropped.incrementAndGet();
+            return Futures.immediateFailedFuture(new IllegalStateException("Publish queue is full"));
+        }
+        return pending.future;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public void run() {
+        List<PendingMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (running || !queue.isEmpty()) {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                // Give other messages a moment to arrive so they share the round trip.
+                long deadline = System.nanoTime() + LINGER_NANOS;
+                while (running && batch.size() < MAX_BATCH_SIZE) {
+                    queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0)
+                        break;
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+                jedis = null;
+            }
+        }
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        try {
+            if (reconnect && jedis != null) {
+                reconnect = false;
+                jedis.close();
+                jedis = null;
+            }
+            if (jedis == null)
+                jedis = plugin.getPool().getResource();
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> responses = new ArrayList<>(batch.size());
+            for (PendingMessage message : batch) {
+                responses.add(pipeline.publish(message.channel, message.message));
+            }
+            pipeline.sync();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.set(responses.get(i).get());
+            }
+            published.addAndGet(batch.size());
+            batches.incrementAndGet();
+            lastBatchSize = batch.size();
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法发布" + batch.size() + "条消息 - 您的Redis服务器消失了吗?", e);
+            if (jedis != null) {
+                jedis.close();
+                jedis = null;
+            }
+            failed.addAndGet(batch.size());
+            for (PendingMessage message : batch) {
+                message.future.setException(e);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class PendingMessage {
+        private final byte[] channel;
+        private final byte[] message;
+        private final SettableFuture<Long> future;
+    }
+}
@@ -0,0 +1,79 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.List;
+
+/**
+ * Where RedisBungee keeps its data. The methods here say what is read and written, not how it gets to Redis, so the
+ * code using them doesn't care which client is underneath.
+ * <p>
+ * Reads that tolerate slightly stale data may be answered by a read replica; everything else goes to the primary.
+ * Methods taking many keys send them in one round trip. Failures are thrown as the client's own unchecked
+ * exceptions.
+ *
+ * @since 0.5
+ */
+public interface RedisStorage {
+    /**
+     * Loads a script into the script cache, returning its SHA1.
+     */
+    String scriptLoad(String script);
+
+    /**
+     * Runs a script by its SHA1, sending the whole script instead if Redis has forgotten it.
+     */
+    Object eval(String script, String sha, List<String> keys, List<String> args);
+
+    /**
+     * Runs a script with binary keys and arguments, for values that aren't text.
+     */
+    Object evalBinary(String script, String sha, List<byte[]> keys, List<byte[]> args);
+
+    /**
+     * Reads a string, or null if it isn't set. May be answered by a replica.
+     */
+    String getStale(String key);
+
+    /**
+     * Reads fields of a hash, with null for those that aren't set. May be answered by a replica.
+     */
+    List<String> hmgetStale(String key, String... fields);
+
+    /**
+     * Reads the same fields of many hashes. May be answered by a replica.
+     */
+    List<List<String>> hmgetStale(List<String> keys, String... fields);
+
+    /**
+     * Reads one binary field from each of many hashes, {@code keys.get(i)} paired with {@code fields.get(i)}. May be
+     * answered by a replica.
+     */
+    List<byte[]> hgetStale(List<byte[]> keys, List<byte[]> fields);
+
+    /**
+     * Starts a batch of writes, which are sent together when it is executed.
+     */
+    Batch batch();
+
+    /**
+     * Closes every connection.
+     */
+    void close();
+
+    /**
+     * Writes queued up to be sent in one round trip.
+     */
+    interface Batch {
+        void hset(byte[] key, byte[] field, byte[] value);
+
+        void hsetnx(byte[] key, byte[] field, byte[] value);
+
+        void hdel(byte[] key, byte[]... fields);
+
+        void hdel(String key, String... fields);
+
+        /**
+         * Sends the writes and waits for Redis to take them.
+         */
+        void execute();
+    }
+}
@@ -0,0 +1,47 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * A token bucket kept in Redis, so every proxy draws from the same one. It holds up to {@code capacity} tokens and
+ * refills at {@code refillPerSecond}, timed by the Redis server's clock rather than the proxies'. Only on Redis older
+ * than 3.2 is the caller's clock used instead.
+ *
+ * @since 0.5
+ */
+@RequiredArgsConstructor
+public class RedisTokenBucket {
+    private final RedisBungee plugin;
+    private final LuaManager.Script script;
+    private final String key;
+    private final int capacity;
+    private final double refillPerSecond;
+    // Whether Redis was unreachable last time, so an outage is only logged when it starts and ends.
+    private final AtomicBoolean failing = new AtomicBoolean();
+
+    /**
+     * Takes a token if one is available. If Redis can't be reached, the token is granted, since the bucket only
+     * exists to keep the network polite and shouldn't add an outage of its own.
+     */
+    public boolean tryAcquire() {
+        try {
+            Object granted = script.eval(ImmutableList.of(key), ImmutableList.of(String.valueOf(capacity),
+                    String.valueOf(refillPerSecond), String.valueOf(System.currentTimeMillis()), "1"));
+            if (failing.compareAndSet(true, false))
+                plugin.getLogger().info("已恢复从Redis获取令牌");
+            return ((Long) granted) == 1;
+        } catch (JedisException e) {
+            if (failing.compareAndSet(false, true))
+                plugin.getLogger().log(Level.WARNING, "无法从Redis获取令牌, 在恢复之前将不再限制请求", e);
+            else
+                plugin.getLogger().log(Level.FINE, "无法从Redis获取令牌", e);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes commands in, and reads replies out of, the Redis protocol (RESP).
+ * <p>
+ * Replies are decoded into what Jedis would have returned for them, so callers can't tell the clients apart: bulk
+ * and status replies as {@code byte[]}, integers as {@link Long}, arrays as {@link List}s, and errors as
+ * {@link JedisDataException}s. A nil reply is passed on as {@link #NIL}, since Netty can't pass on null, but nils
+ * inside an array are plain nulls.
+ *
+ * @since 0.5
+ */
+@VisibleForTesting
+public final class RespCodec {
+    public static final Object NIL = new Object();
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private RespCodec() {
+    }
+
+    /**
+     * Writes a command, its name followed by its arguments, to {@code out}.
+     */
+    public static void encode(ByteBuf out, byte[]... args) {
+        out.writeByte('*');
+        writeNumber(out, args.length);
+        for (byte[] arg : args) {
+            out.writeByte('$');
+            writeNumber(out, arg.length);
+            out.writeBytes(arg);
+            out.writeBytes(CRLF);
+        }
+    }
+
+    private static void writeNumber(ByteBuf out, int number) {
+        out.writeBytes(Integer.toString(number).getBytes(Charsets.US_ASCII));
+        out.writeBytes(CRLF);
+    }
+
+    /**
+     * Turns the bytes Redis sends into one message per reply. A reply split over several reads is only passed on
+     * once all of it has arrived.
+     */
+    public static class Decoder extends ByteToMessageDecoder {
+        // Returned while reading a reply that hasn't fully arrived yet.
+        private static final Object INCOMPLETE = new Object();
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int start = in.readerIndex();
+            Object reply = read(in);
+            if (reply == INCOMPLETE)
+                in.readerIndex(start);
+            else
+                out.add(reply);
+        }
+
+        private static Object read(ByteBuf in) {
+            if (!in.isReadable())
+                return INCOMPLETE;
+            byte type = in.readByte();
+            byte[] line = readLine(in);
+            if (line == null)
+                return INCOMPLETE;
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new JedisDataException(new String(line, Charsets.UTF_8));
+                case ':':
+                    return parseLong(line);
+                case '$': {
+                    int length = (int) parseLong(line);
+                    if (length < 0)
+                        return NIL;
+                    if (in.readableBytes() < length + CRLF.length)
+                        return INCOMPLETE;
+                    byte[] bulk = new byte[length];
+                    in.readBytes(bulk);
+                    in.skipBytes(CRLF.length);
+                    return bulk;
+                }
+                case '*': {
+                    int size = (int) parseLong(line);
+                    if (size < 0)
+                        return NIL;
+                    List<Object> elements = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        Object element = read(in);
+                        if (element == INCOMPLETE)
+                            return INCOMPLETE;
+                        elements.add(element == NIL ? null : element);
+                    }
+                    return elements;
+                }
+                default:
+                    throw new DecoderException("未知的Redis回复类型: " + (char) type);
+            }
+        }
+
+        private static byte[] readLine(ByteBuf in) {
+            int end = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+            if (end < 0)
+                return null;
+            // The line ends in \r\n, and only the \n was searched for.
+            byte[] line = new byte[end - in.readerIndex() - 1];
+            in.readBytes(line);
+            in.skipBytes(CRLF.length);
+            return line;
+        }
+
+        private static long parseLong(byte[] line) {
+            return Long.parseLong(new String(line, Charsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks a set of Redis Sentinels where the master of a monitored group, and its healthy replicas, currently are.
+ * Sentinels are tried in order until one answers.
+ *
+ * @since 0.5
+ */
+@RequiredArgsConstructor
+public class SentinelResolver {
+    private static final int TIMEOUT = 2000;
+
+    private final List<HostAndPort> sentinels;
+    @Getter
+    private final String masterName;
+
+    public HostAndPort getMaster() {
+        JedisException last = null;
+        for (HostAndPort sentinel : sentinels) {
+            try (Jedis jedis = new Jedis(sentinel.getHost(), sentinel.getPort(), TIMEOUT)) {
+                List<String> address = jedis.sentinelGetMasterAddrByName(masterName);
+                if (address != null && address.size() == 2)
+                    return new HostAndPort(address.get(0), Integer.parseInt(address.get(1)));
+            } catch (JedisException e) {
+                last = e;
+            }
+        }
+        throw new JedisConnectionException("没有哨兵知道主节点" + masterName + "的地址", last);
+    }
+
+    /**
+     * Returns the replicas that are up and in sync with the master, or an empty list if no Sentinel answers.
+     */
+    public List<HostAndPort> getReplicas() {
+        for (HostAndPort sentinel : sentinels) {
+            try (Jedis jedis = new Jedis(sentinel.getHost(), sentinel.getPort(), TIMEOUT)) {
+                ImmutableList.Builder<HostAndPort> replicas = ImmutableList.builder();
+                for (Map<String, String> replica : jedis.sentinelSlaves(masterName)) {
+                    String flags = replica.get("flags");
+                    if (flags == null || flags.contains("s_down") || flags.contains("o_down") || flags.contains("disconnected"))
+                        continue;
+                    if (!"ok".equals(replica.get("master-link-status")))
+                        continue;
+                    replicas.add(new HostAndPort(replica.get("ip"), Integer.parseInt(replica.get("port"))));
+                }
+                return replicas.build();
+            } catch (JedisException ignored) {
+            }
+        }
+        return ImmutableList.of();
+    }
+
+    public static HostAndPort parseAddress(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon == -1)
+            return new HostAndPort(address.trim(), defaultPort);
+        return new HostAndPort(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+    }
+}
@@ -0,0 +1,78 @@
+package com.imaginarycode.minecraft.redisbungee.util.uuid;
+
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An entry of the uuid-cache buckets. It is stored as a format version byte, the expiry in epoch seconds as four
+ * bytes, the UUID as sixteen bytes, then the name in UTF-8, so even a sixteen character name stays well under the
+ * 64 bytes a value may have for Redis to keep its hash in the compact listpack encoding.
+ * <p>
+ * Names and UUIDs each get their own set of buckets, see {@link RedisKeys#UUID_CACHE_BUCKETS}. Name fields are the
+ * lowercased name, and UUID fields are the sixteen bytes of the UUID.
+ *
+ * @since 0.5
+ */
+@Getter
+@RequiredArgsConstructor
+@EqualsAndHashCode
+public class CompactUUIDEntry {
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 21;
+
+    private final String name;
+    private final UUID uuid;
+    // In milliseconds, but only stored to the second.
+    private final long expiry;
+
+    public boolean expired() {
+        return System.currentTimeMillis() > expiry;
+    }
+
+    public byte[] encode() {
+        byte[] name = this.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + name.length);
+        buffer.put(VERSION);
+        buffer.putInt((int) TimeUnit.MILLISECONDS.toSeconds(expiry));
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.put(name);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the entry stored as {@code data}, or null if it isn't an entry this version understands.
+     */
+    public static CompactUUIDEntry decode(byte[] data) {
+        if (data == null || data.length <= HEADER_LENGTH || data[0] != VERSION)
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, HEADER_LENGTH - 1);
+        long expiry = TimeUnit.SECONDS.toMillis(buffer.getInt() & 0xFFFFFFFFL);
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        return new CompactUUIDEntry(new String(data, HEADER_LENGTH, data.length - HEADER_LENGTH, StandardCharsets.UTF_8), uuid, expiry);
+    }
+
+    public static byte[] nameField(String name) {
+        return name.toLowerCase().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] uuidField(UUID uuid) {
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    public static byte[] nameBucket(String name) {
+        return SafeEncoder.encode(RedisKeys.uuidCacheNames(RedisKeys.uuidCacheBucket(nameField(name))));
+    }
+
+    public static byte[] uuidBucket(UUID uuid) {
+        return SafeEncoder.encode(RedisKeys.uuidCacheUuids(RedisKeys.uuidCacheBucket(uuidField(uuid))));
+    }
+}
@@ -0,0 +1,190 @@
+package com.imaginarycode.minecraft.redisbungee.util.uuid;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A second tier under the {@link UUIDTranslator}'s in-memory maps, kept in a file in the plugin folder. It survives
+ * restarts, so a proxy that has just started doesn't have to go to Redis for every player it has seen before, and it
+ * still answers while Redis is down.
+ * <p>
+ * Entries are indexed straight away but only appended to the file when {@link #flush} is called, so storing one never
+ * waits on the disk. The file is read back when the cache is opened. The entries are small, so the index keeps them
+ * outright rather than pointing into the file. When the cache is full, the entries
+ * written longest ago go first. Once the file holds more than twice as many records as there are entries, it can be
+ * compacted, which writes the entries to a new file and moves that over the old one.
+ *
+ * @since 0.5
+ */
+public class DiskUUIDCache implements Closeable {
+    private static final int MAX_RECORD_LENGTH = 1024;
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    private final File file;
+    private final int maximumSize;
+    private final Logger logger;
+    // In the order the entries were written, so the first one is the first to go.
+    private final LinkedHashMap<UUID, CompactUUIDEntry> entries = new LinkedHashMap<>();
+    private final Map<String, UUID> names = new HashMap<>();
+    // Records not yet written to the file.
+    private List<byte[]> pending = new ArrayList<>();
+    // Held while writing to the file, so that the index can be used in the meantime. Taken before the monitor.
+    private final Object fileLock = new Object();
+    private DataOutputStream out;
+    // Records in the file, counting those still pending.
+    private int records;
+
+    public DiskUUIDCache(File file, int maximumSize, Logger logger) throws IOException {
+        this.file = file;
+        this.maximumSize = maximumSize;
+        this.logger = logger;
+        load();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    public synchronized CompactUUIDEntry getByName(String name) {
+        UUID uuid = names.get(name.toLowerCase());
+        return uuid == null ? null : entries.get(uuid);
+    }
+
+    public synchronized CompactUUIDEntry getByUuid(UUID uuid) {
+        return entries.get(uuid);
+    }
+
+    /**
+     * Stores an entry, unless the same entry is already stored. It is written to the file by the next {@link #flush}.
+     */
+    public synchronized void put(CompactUUIDEntry entry) {
+        if (entry.equals(entries.get(entry.getUuid())))
+            return;
+        index(entry);
+        pending.add(entry.encode());
+        records++;
+    }
+
+    /**
+     * Writes the entries stored since the last flush to the file.
+     */
+    public void flush() throws IOException {
+        synchronized (fileLock) {
+            List<byte[]> batch;
+            synchronized (this) {
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            for (byte[] record : batch) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            out.flush();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns whether enough of the file is taken up by replaced and evicted records for compaction to be worth it.
+     */
+    public synchronized boolean needsCompaction() {
+        return records > MIN_COMPACTION_RECORDS && records > entries.size() * 2;
+    }
+
+    public void compact() throws IOException {
+        synchronized (fileLock) {
+            // The pending records are all in the index, so they are written along with everything else. They are only
+            // dropped once the new file is in place, since until then the old one is all there is.
+            List<CompactUUIDEntry> live;
+            int written;
+            synchronized (this) {
+                live = new ArrayList<>(entries.values());
+                written = pending.size();
+            }
+            File compacted = new File(file.getPath() + ".tmp");
+            try (DataOutputStream temp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+                for (CompactUUIDEntry entry : live) {
+                    byte[] record = entry.encode();
+                    temp.writeInt(record.length);
+                    temp.write(record);
+                }
+            }
+            out.close();
+            try {
+                Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (this) {
+                    // Anything stored while we were writing is still to go.
+                    pending = new ArrayList<>(pending.subList(written, pending.size()));
+                    records = live.size() + pending.size();
+                }
+            } finally {
+                // Whether or not the move worked, later records go to whichever file is there.
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            flush();
+            out.close();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH)
+                    break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                // A record that is whole but can't be decoded, say from a newer version, is skipped rather than taken
+                // for the end of the file. The next compaction drops it.
+                CompactUUIDEntry entry = CompactUUIDEntry.decode(record);
+                if (entry != null)
+                    index(entry);
+                records++;
+                valid += 4 + length;
+            }
+        } catch (EOFException ignored) {
+        }
+
+        // A record cut short, say by a crash, or with an impossible length ends the file. Drop it so new records aren't appended after it.
+        if (valid < file.length()) {
+            logger.warning("本地UUID缓存文件的末尾已损坏, 已丢弃" + (file.length() - valid) + "字节");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    private void index(CompactUUIDEntry entry) {
+        CompactUUIDEntry previous = entries.remove(entry.getUuid());
+        if (previous != null && entry.getUuid().equals(names.get(previous.getName().toLowerCase())))
+            names.remove(previous.getName().toLowerCase());
+        // The name may have belonged to someone else before, whose entry is now wrong.
+        UUID previousOwner = names.put(entry.getName().toLowerCase(), entry.getUuid());
+        if (previousOwner != null && !previousOwner.equals(entry.getUuid()))
+            entries.remove(previousOwner);
+        entries.put(entry.getUuid(), entry);
+
+        Iterator<CompactUUIDEntry> it = entries.values().iterator();
+        while (entries.size() > maximumSize) {
+            CompactUUIDEntry evicted = it.next();
+            it.remove();
+            if (evicted.getUuid().equals(names.get(evicted.getName().toLowerCase())))
+                names.remove(evicted.getName().toLowerCase());
+        }
+    }
+}
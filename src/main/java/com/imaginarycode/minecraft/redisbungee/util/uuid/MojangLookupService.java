@@ -0,0 +1,229 @@
+package com.imaginarycode.minecraft.redisbungee.util.uuid;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.imaginarycode.minecraft.redisbungee.util.CircuitBreaker;
+import com.imaginarycode.minecraft.redisbungee.util.RedisTokenBucket;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces lookups against Mojang. Concurrent lookups of the same name or UUID share one request, and names looked
+ * up within a short window of each other are sent together, up to 100 to a request.
+ * <p>
+ * Every request first needs a token from the network-wide bucket, and none are sent while the circuit breaker is
+ * open. Lookups that can't be sent fail straight away with {@link UnavailableException}.
+ *
+ * @since 0.5
+ */
+public class MojangLookupService {
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final ScheduledExecutorService executor;
+    private final long windowMillis;
+    private final RedisTokenBucket bucket;
+    @Getter
+    private final CircuitBreaker breaker;
+    private final ConcurrentMap<String, SettableFuture<Profile>> pendingProfiles = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, SettableFuture<String>> pendingNames = new ConcurrentHashMap<>();
+    private final Object batchLock = new Object();
+    private List<String> batch = new ArrayList<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    public MojangLookupService(ScheduledExecutorService executor, long windowMillis) {
+        this(executor, windowMillis, null, new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(30)));
+    }
+
+    public MojangLookupService(ScheduledExecutorService executor, long windowMillis, RedisTokenBucket bucket, CircuitBreaker breaker) {
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+        this.bucket = bucket;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Looks up the profile of a name. The future yields null if Mojang doesn't know the name.
+     */
+    public ListenableFuture<Profile> getProfile(String name) {
+        String key = name.toLowerCase();
+        SettableFuture<Profile> future = pendingProfiles.get(key);
+        if (future == null) {
+            SettableFuture<Profile> created = SettableFuture.create();
+            future = pendingProfiles.putIfAbsent(key, created);
+            if (future == null) {
+                enqueue(name);
+                return created;
+            }
+        }
+        coalesced.incrementAndGet();
+        return future;
+    }
+
+    /**
+     * Looks up the current name of a UUID. The future yields null if Mojang doesn't know the UUID.
+     */
+    public ListenableFuture<String> getName(final UUID uuid) {
+        SettableFuture<String> future = pendingNames.get(uuid);
+        if (future == null) {
+            final SettableFuture<String> created = SettableFuture.create();
+            future = pendingNames.putIfAbsent(uuid, created);
+            if (future == null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception unavailable = checkAvailable();
+                        if (unavailable != null) {
+                            pendingNames.remove(uuid, created);
+                            created.setException(unavailable);
+                            return;
+                        }
+                        requests.incrementAndGet();
+                        try {
+                            String name = Iterables.getLast(NameFetcher.nameHistoryFromUuid(uuid), null);
+                            breaker.recordSuccess();
+                            pendingNames.remove(uuid, created);
+                            created.set(name);
+                        } catch (Exception e) {
+                            breaker.recordFailure();
+                            pendingNames.remove(uuid, created);
+                            created.setException(e);
+                        }
+                    }
+                });
+                return created;
+            }
+        }
+        coalesced.incrementAndGet();
+        return future;
+    }
+
+    /**
+     * @return how many requests have been sent to Mojang
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return how many lookups were answered by a request that was already in flight
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return how many requests were held back because the network had used up its tokens
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    private Exception checkAvailable() {
+        if (!breaker.allowRequest())
+            return new UnavailableException("Mojang API暂时不可用");
+        if (bucket != null && !bucket.tryAcquire()) {
+            throttled.incrementAndGet();
+            return new UnavailableException("已达到Mojang API请求速率上限");
+        }
+        return null;
+    }
+
+    private void enqueue(String name) {
+        List<String> full = null;
+        final List<String> started;
+        synchronized (batchLock) {
+            batch.add(name);
+            started = batch.size() == 1 ? batch : null;
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                full = batch;
+                batch = new ArrayList<>();
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        } else if (started != null) {
+            // This name opened a new batch, so it is the one to close it when the window is over.
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (batchLock) {
+                        if (batch != started)
+                            return; // It filled up and was sent already.
+                        batch = new ArrayList<>();
+                    }
+                    send(started);
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void send(final List<String> names) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Profile> found = new HashMap<>();
+                try {
+                    Exception unavailable = checkAvailable();
+                    if (unavailable != null)
+                        throw unavailable;
+                    requests.incrementAndGet();
+                    try {
+                        for (Map.Entry<String, UUID> entry : new UUIDFetcher(names).call().entrySet()) {
+                            found.put(entry.getKey().toLowerCase(), new Profile(entry.getKey(), entry.getValue()));
+                        }
+                    } catch (Exception e) {
+                        breaker.recordFailure();
+                        throw e;
+                    }
+                    breaker.recordSuccess();
+                } catch (Exception e) {
+                    for (String name : names) {
+                        SettableFuture<Profile> future = pendingProfiles.remove(name.toLowerCase());
+                        if (future != null)
+                            future.setException(e);
+                    }
+                    return;
+                }
+                for (String name : names) {
+                    SettableFuture<Profile> future = pendingProfiles.remove(name.toLowerCase());
+                    if (future != null)
+                        future.set(found.get(name.toLowerCase()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Thrown in place of a lookup that wasn't sent, because Mojang is failing or the network is out of tokens.
+     */
+    public static class UnavailableException extends Exception {
+        public UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A name in the casing Mojang has it, and its UUID.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class Profile {
+        private final String name;
+        private final UUID uuid;
+    }
+}
@@ -4,6 +4,7 @@ import com.google.gson.reflect.TypeToken;
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
 import com.squareup.okhttp.ResponseBody;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
@@ -19,19 +20,26 @@ import java.util.UUID;
 public class NameFetcher {
     @Setter
     private static OkHttpClient httpClient;
+    @Setter
+    private static String profilesUrl = "https://api.mojang.com/user/profiles/";
 
     public static List<String> nameHistoryFromUuid(UUID uuid) throws IOException {
-        String url = "https://api.mojang.com/user/profiles/" + uuid.toString().replace("-", "") + "/names";
+        String url = profilesUrl + uuid.toString().replace("-", "") + "/names";
         Request request = new Request.Builder().url(url).get().build();
-        ResponseBody body = httpClient.newCall(request).execute().body();
+        Response httpResponse = httpClient.newCall(request).execute();
+        ResponseBody body = httpResponse.body();
         String response = body.string();
         body.close();
+        if (!httpResponse.isSuccessful())
+            throw new IOException("Mojang返回了HTTP " + httpResponse.code());
 
         Type listType = new TypeToken<List<Name>>() {
         }.getType();
         List<Name> names = RedisBungee.getGson().fromJson(response, listType);
 
         List<String> humanNames = new ArrayList<>();
+        if (names == null)
+            return humanNames; // 204 No Content: Mojang doesn't know this UUID.
         for (Name name : names) {
             humanNames.add(name.name);
         }
@@ -0,0 +1,202 @@
+package com.imaginarycode.minecraft.redisbungee.util.uuid;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonParseException;
+import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import com.imaginarycode.minecraft.redisbungee.util.LuaManager;
+import com.imaginarycode.minecraft.redisbungee.util.MaintenanceLeader;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps uuid-cache tidy in the background. A pass first moves whatever is left in the old single {@code uuid-cache}
+ * hash into the buckets, walking it with HSCAN, then goes through the buckets one at a time and removes expired
+ * entries. Every run does a little of this and stops after a few milliseconds, so Redis is never kept busy by it for
+ * long. A name and its UUID are removed together, and only if they still hold the entry that was found to be expired.
+ * <p>
+ * Once the old hash is empty, {@link RedisKeys#uuidCacheMigrated} is set so that lookups stop reading it.
+ * <p>
+ * Only the {@link MaintenanceLeader} does any of this. How far the pass has got is kept in Redis, so if another proxy
+ * becomes leader, it carries on where the last one stopped.
+ *
+ * @since 0.5
+ */
+public class UUIDCacheSweeper implements Runnable {
+    private static final int SCAN_COUNT = 200;
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long PASS_INTERVAL = TimeUnit.HOURS.toMillis(6);
+    private static final String MIGRATING = "migrating";
+    private static final String SWEEPING = "sweeping";
+
+    private final RedisBungee plugin;
+    private final MaintenanceLeader maintenanceLeader;
+    private final LuaManager.Script deleteScript;
+    private final ScanParams scanParams = new ScanParams().count(SCAN_COUNT);
+    @Getter
+    private volatile boolean leader;
+    private volatile String phase = MIGRATING;
+    @Getter
+    private volatile long scanned;
+    @Getter
+    private volatile long migrated;
+    @Getter
+    private volatile long reclaimed;
+    @Getter
+    private volatile long lastPassFinished;
+
+    public UUIDCacheSweeper(RedisBungee plugin, MaintenanceLeader maintenanceLeader, LuaManager.Script deleteScript) {
+        this.plugin = plugin;
+        this.maintenanceLeader = maintenanceLeader;
+        this.deleteScript = deleteScript;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!(leader = maintenanceLeader.isLeader()))
+                return;
+
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                Map<String, String> state = jedis.hgetAll(RedisKeys.uuidCacheSweep());
+                if (System.currentTimeMillis() < parseLong(state.get("next-pass")))
+                    return;
+
+                String phase = state.containsKey("phase") ? state.get("phase") : MIGRATING;
+                String cursor = state.containsKey("cursor") ? state.get("cursor") : ScanParams.SCAN_POINTER_START;
+                scanned = parseLong(state.get("scanned"));
+                migrated = parseLong(state.get("migrated"));
+                reclaimed = parseLong(state.get("reclaimed"));
+                boolean finished = false;
+                long deadline = System.nanoTime() + SLICE_NANOS;
+                do {
+                    if (phase.equals(MIGRATING)) {
+                        ScanResult<Map.Entry<String, String>> result = jedis.hscan(RedisKeys.uuidCache(), cursor, scanParams);
+                        cursor = result.getStringCursor();
+                        migrate(jedis, result.getResult());
+                        if (cursor.equals(ScanParams.SCAN_POINTER_START)) {
+                            phase = SWEEPING;
+                            // Unless an older proxy has written to it meanwhile, the old hash is gone, and nobody
+                            // needs to read it any more.
+                            if (!jedis.exists(RedisKeys.uuidCache()))
+                                jedis.set(RedisKeys.uuidCacheMigrated(), "1");
+                        }
+                    } else {
+                        int bucket = Integer.parseInt(cursor);
+                        sweep(jedis, bucket);
+                        cursor = String.valueOf(++bucket);
+                        finished = bucket == RedisKeys.UUID_CACHE_BUCKETS * 2;
+                    }
+                } while (!finished && System.nanoTime() < deadline);
+                this.phase = phase;
+
+                if (finished) {
+                    plugin.getLogger().info("uuid-cache清理完成: 扫描了" + scanned + "条记录, 迁移了" + migrated + "条旧格式记录, 删除了" + reclaimed + "条过期记录");
+                    lastPassFinished = System.currentTimeMillis();
+                    this.phase = MIGRATING;
+                    jedis.del(RedisKeys.uuidCacheSweep());
+                    jedis.hset(RedisKeys.uuidCacheSweep(), "next-pass", String.valueOf(lastPassFinished + PASS_INTERVAL));
+                } else {
+                    jedis.hmset(RedisKeys.uuidCacheSweep(), ImmutableMap.of("phase", phase, "cursor", cursor,
+                            "scanned", String.valueOf(scanned), "migrated", String.valueOf(migrated), "reclaimed", String.valueOf(reclaimed)));
+                }
+            }
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.WARNING, "无法清理uuid-cache", e);
+        }
+    }
+
+    /**
+     * Returns whether the pass is still moving entries out of the old hash, rather than sweeping the buckets.
+     */
+    public boolean isMigrating() {
+        return phase.equals(MIGRATING);
+    }
+
+    /**
+     * Copies the live entries among {@code entries} of the old hash into the buckets, without overwriting anything
+     * written there since, then removes all of {@code entries} from the old hash.
+     */
+    private void migrate(Jedis jedis, List<Map.Entry<String, String>> entries) {
+        byte[] legacy = SafeEncoder.encode(RedisKeys.uuidCache());
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        List<byte[]> args = new ArrayList<>(entries.size() * 2);
+        Pipeline pipeline = jedis.pipelined();
+        for (Map.Entry<String, String> entry : entries) {
+            scanned++;
+            UUIDTranslator.CachedUUIDEntry stored = parse(entry.getValue());
+            if (stored != null && !stored.expired()) {
+                byte[] value = new CompactUUIDEntry(stored.getName(), stored.getUuid(), stored.getExpiry().getTimeInMillis()).encode();
+                if (UUIDTranslator.UUID_PATTERN.matcher(entry.getKey()).matches())
+                    pipeline.hsetnx(CompactUUIDEntry.uuidBucket(stored.getUuid()), CompactUUIDEntry.uuidField(stored.getUuid()), value);
+                else
+                    pipeline.hsetnx(CompactUUIDEntry.nameBucket(stored.getName()), CompactUUIDEntry.nameField(stored.getName()), value);
+                migrated++;
+            } else {
+                reclaimed++;
+            }
+            keys.add(legacy);
+            args.add(SafeEncoder.encode(entry.getKey()));
+            args.add(SafeEncoder.encode(entry.getValue()));
+        }
+        pipeline.sync();
+        if (!keys.isEmpty())
+            deleteScript.evalBinary(jedis, keys, args);
+    }
+
+    /**
+     * Removes the expired entries of one bucket, along with the other half of each pair. Buckets below
+     * {@link RedisKeys#UUID_CACHE_BUCKETS} are name buckets, the rest are UUID buckets.
+     */
+    private void sweep(Jedis jedis, int bucket) {
+        boolean names = bucket < RedisKeys.UUID_CACHE_BUCKETS;
+        byte[] key = SafeEncoder.encode(names ? RedisKeys.uuidCacheNames(bucket) : RedisKeys.uuidCacheUuids(bucket - RedisKeys.UUID_CACHE_BUCKETS));
+        Map<byte[], byte[]> entries = jedis.hgetAll(key);
+        scanned += entries.size();
+
+        // Field and value pairs to delete, each only if the field still holds that value.
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> args = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            CompactUUIDEntry stored = CompactUUIDEntry.decode(entry.getValue());
+            if (stored != null && !stored.expired())
+                continue;
+            keys.add(key);
+            args.add(entry.getKey());
+            args.add(entry.getValue());
+            if (stored != null) {
+                // The other half holds the same bytes, unless it has since been rewritten and so isn't expired.
+                keys.add(names ? CompactUUIDEntry.uuidBucket(stored.getUuid()) : CompactUUIDEntry.nameBucket(stored.getName()));
+                args.add(names ? CompactUUIDEntry.uuidField(stored.getUuid()) : CompactUUIDEntry.nameField(stored.getName()));
+                args.add(entry.getValue());
+            }
+        }
+        if (!keys.isEmpty())
+            reclaimed += (Long) deleteScript.evalBinary(jedis, keys, args);
+    }
+
+    /**
+     * Returns the old-format entry stored as {@code value}, or null if it is unreadable.
+     */
+    private static UUIDTranslator.CachedUUIDEntry parse(String value) {
+        try {
+            UUIDTranslator.CachedUUIDEntry entry = RedisBungee.getGson().fromJson(value, UUIDTranslator.CachedUUIDEntry.class);
+            return entry == null || entry.getExpiry() == null || entry.getName() == null || entry.getUuid() == null ? null : entry;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+}
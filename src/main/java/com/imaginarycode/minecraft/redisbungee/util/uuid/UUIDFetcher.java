@@ -5,6 +5,7 @@ import com.imaginarycode.minecraft.redisbungee.RedisBungee;
 import com.squareup.okhttp.*;
 import lombok.Setter;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,13 +15,14 @@ import java.util.concurrent.Callable;
 /* Credits to evilmidget38 for this class. I modified it to use Gson. */
 public class UUIDFetcher implements Callable<Map<String, UUID>> {
     private static final double PROFILES_PER_REQUEST = 100;
-    private static final String PROFILE_URL = "https://api.mojang.com/profiles/minecraft";
     private static final MediaType JSON = MediaType.parse("application/json");
     private final List<String> names;
     private final boolean rateLimiting;
 
     @Setter
     private static OkHttpClient httpClient;
+    @Setter
+    private static String profileUrl = "https://api.mojang.com/profiles/minecraft";
 
     private UUIDFetcher(List<String> names, boolean rateLimiting) {
         this.names = ImmutableList.copyOf(names);
@@ -40,10 +42,14 @@ public class UUIDFetcher implements Callable<Map<String, UUID>> {
         int requests = (int) Math.ceil(names.size() / PROFILES_PER_REQUEST);
         for (int i = 0; i < requests; i++) {
             String body = RedisBungee.getGson().toJson(names.subList(i * 100, Math.min((i + 1) * 100, names.size())));
-            Request request = new Request.Builder().url(PROFILE_URL).post(RequestBody.create(JSON, body)).build();
-            ResponseBody responseBody = httpClient.newCall(request).execute().body();
+            Request request = new Request.Builder().url(profileUrl).post(RequestBody.create(JSON, body)).build();
+            Response httpResponse = httpClient.newCall(request).execute();
+            ResponseBody responseBody = httpResponse.body();
             String response = responseBody.string();
             responseBody.close();
+            // Errors such as 429 Too Many Requests come back as an object, not a list of profiles.
+            if (!httpResponse.isSuccessful())
+                throw new IOException("Mojang返回了HTTP " + httpResponse.code());
             Profile[] array = RedisBungee.getGson().fromJson(response, Profile[].class);
             for (Profile profile : array) {
                 UUID uuid = UUIDFetcher.getUUID(profile.id);
@@ -1,56 +1,172 @@
 package com.imaginarycode.minecraft.redisbungee.util.uuid;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.RedisStorage;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisException;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
 @RequiredArgsConstructor
 public final class UUIDTranslator {
-    private static final Pattern UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{8}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{12}");
+    static final Pattern UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{8}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{12}");
     private static final Pattern MOJANGIAN_UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{32}");
+    private static final long ENTRY_LIFETIME = TimeUnit.DAYS.toMillis(3);
+    private static final int MAXIMUM_SIZE = 10000;
+    private static final int HMGET_CHUNK_SIZE = 500;
+    // How long a lookup waits on Mojang before making do with what we have.
+    private static final long MOJANG_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // How often we look for the sweeper's marker while the old uuid-cache hash is still being read.
+    private static final long MIGRATION_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1);
     private final RedisBungee plugin;
-    private final Map<String, CachedUUIDEntry> nameToUuidMap = new ConcurrentHashMap<>(128, 0.5f, 4);
-    private final Map<UUID, CachedUUIDEntry> uuidToNameMap = new ConcurrentHashMap<>(128, 0.5f, 4);
-
-    private void addToMaps(String name, UUID uuid) {
-        // This is why I like LocalDate...
-
-        // Cache the entry for three days.
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DAY_OF_MONTH, 3);
+    @Getter
+    private final MojangLookupService mojangLookups;
+    // Entries on disk, or null if that is turned off.
+    @Getter
+    private final DiskUUIDCache diskCache;
+    // Entries also carry the expiry they were stored in Redis with, which is usually the sooner of the two.
+    private final Cache<String, LocalUUIDEntry> nameToUuidMap = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .recordStats()
+            .build();
+    private final Cache<UUID, LocalUUIDEntry> uuidToNameMap = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .recordStats()
+            .build();
+    // Names and UUIDs that Redis doesn't know, so we don't ask it about them again right away. TRUE means Mojang
+    // didn't know them either, so it isn't asked again right away either.
+    private final Cache<String, Boolean> unknownNames = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+    private final Cache<UUID, Boolean> unknownUuids = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+    // Once the sweeper has emptied the old uuid-cache hash it stays empty, so this never goes back to false.
+    private volatile boolean legacyMigrated;
+    private volatile long legacyCheckedAt;
 
-        // Create the entry and populate the local maps
-        CachedUUIDEntry entry = new CachedUUIDEntry(name, uuid, calendar);
+    private LocalUUIDEntry addToMaps(String name, UUID uuid, long expiry) {
+        LocalUUIDEntry entry = new LocalUUIDEntry(name, uuid, expiry);
         nameToUuidMap.put(name.toLowerCase(), entry);
         uuidToNameMap.put(uuid, entry);
+        unknownNames.invalidate(name.toLowerCase());
+        unknownUuids.invalidate(uuid);
+        if (diskCache != null)
+            diskCache.put(new CompactUUIDEntry(name, uuid, expiry));
+        return entry;
+    }
+
+    /**
+     * Returns the entry on disk for {@code player}, including an expired one if {@code stale} is true, which is only
+     * better than nothing while Redis can't be reached. Live entries are put back into the in-memory maps.
+     */
+    private LocalUUIDEntry getFromDisk(String player, boolean stale) {
+        if (diskCache == null)
+            return null;
+        return fromDisk(diskCache.getByName(player), stale);
+    }
+
+    private LocalUUIDEntry getFromDisk(UUID player, boolean stale) {
+        if (diskCache == null)
+            return null;
+        return fromDisk(diskCache.getByUuid(player), stale);
+    }
+
+    private LocalUUIDEntry fromDisk(CompactUUIDEntry entry, boolean stale) {
+        if (entry == null)
+            return null;
+        if (entry.expired())
+            return stale ? new LocalUUIDEntry(entry.getName(), entry.getUuid(), entry.getExpiry()) : null;
+        return addToMaps(entry.getName(), entry.getUuid(), entry.getExpiry());
+    }
+
+    public CacheStats getNameCacheStats() {
+        return nameToUuidMap.stats();
+    }
+
+    public CacheStats getUuidCacheStats() {
+        return uuidToNameMap.stats();
+    }
+
+    public CacheStats getNegativeCacheStats() {
+        return unknownNames.stats().plus(unknownUuids.stats());
+    }
+
+    public long getCacheSize() {
+        return nameToUuidMap.size() + uuidToNameMap.size();
     }
 
     public final UUID getTranslatedUuid(@NonNull String player, boolean expensiveLookups) {
+        UUID local = getLocalUuid(player);
+        if (local != null)
+            return local;
+
+        // Let's try Redis, unless it didn't know them a moment ago. A replica may answer the read; anything we write
+        // goes to the primary.
+        String key = player.toLowerCase();
+        try {
+            Boolean unknown = unknownNames.getIfPresent(key);
+            if (unknown == null) {
+                CompactUUIDEntry entry = readEntries(Collections.singletonList(key)).get(key);
+                if (entry != null)
+                    return addToMaps(entry.getName(), entry.getUuid(), entry.getExpiry()).getUuid();
+                unknownNames.put(key, Boolean.FALSE);
+            }
+
+            // That didn't work. Let's ask Mojang, unless it didn't know them either.
+            if (Boolean.TRUE.equals(unknown) || !expensiveLookups || !ProxyServer.getInstance().getConfig().isOnlineMode())
+                return null;
+            return fetchUuidsFromMojang(Collections.singletonList(player)).get(key);
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法为指定玩家获取UUID: " + player, e);
+            LocalUUIDEntry stale = getFromDisk(player, true);
+            if (stale != null)
+                return stale.getUuid();
+        }
+
+        return null; // Nope, game over!
+    }
+
+    /**
+     * Resolves a name without going to Redis or Mojang, or returns null if that isn't possible.
+     */
+    private UUID getLocalUuid(String player) {
         // If the player is online, give them their UUID.
         // Remember, local data > remote data.
         if (ProxyServer.getInstance().getPlayer(player) != null)
             return ProxyServer.getInstance().getPlayer(player).getUniqueId();
 
         // Check if it exists in the map
-        CachedUUIDEntry cachedUUIDEntry = nameToUuidMap.get(player.toLowerCase());
+        LocalUUIDEntry cachedUUIDEntry = nameToUuidMap.getIfPresent(player.toLowerCase());
         if (cachedUUIDEntry != null) {
             if (!cachedUUIDEntry.expired())
                 return cachedUUIDEntry.getUuid();
             else
-                nameToUuidMap.remove(player);
+                nameToUuidMap.invalidate(player.toLowerCase());
         }
 
         // Check if we can exit early
@@ -69,47 +185,8 @@ public final class UUIDTranslator {
             return UUID.nameUUIDFromBytes(("OfflinePlayer:" + player).getBytes(Charsets.UTF_8));
         }
 
-        // Let's try Redis.
-        try (Jedis jedis = plugin.getPool().getResource()) {
-            String stored = jedis.hget("uuid-cache", player.toLowerCase());
-            if (stored != null) {
-                // Found an entry value. Deserialize it.
-                CachedUUIDEntry entry = RedisBungee.getGson().fromJson(stored, CachedUUIDEntry.class);
-
-                // Check for expiry:
-                if (entry.expired()) {
-                    jedis.hdel("uuid-cache", player.toLowerCase());
-                    // Doesn't hurt to also remove the UUID entry as well.
-                    jedis.hdel("uuid-cache", entry.getUuid().toString());
-                } else {
-                    nameToUuidMap.put(player.toLowerCase(), entry);
-                    uuidToNameMap.put(entry.getUuid(), entry);
-                    return entry.getUuid();
-                }
-            }
-
-            // That didn't work. Let's ask Mojang.
-            if (!expensiveLookups || !ProxyServer.getInstance().getConfig().isOnlineMode())
-                return null;
-
-            Map<String, UUID> uuidMap1;
-            try {
-                uuidMap1 = new UUIDFetcher(Collections.singletonList(player)).call();
-            } catch (Exception e) {
-                plugin.getLogger().log(Level.SEVERE, "无法从Mojang获取指定玩家的UUID: " + player, e);
-                return null;
-            }
-            for (Map.Entry<String, UUID> entry : uuidMap1.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(player)) {
-                    persistInfo(entry.getKey(), entry.getValue(), jedis);
-                    return entry.getValue();
-                }
-            }
-        } catch (JedisException e) {
-            plugin.getLogger().log(Level.SEVERE, "无法为指定玩家获取UUID: " + player, e);
-        }
-
-        return null; // Nope, game over!
+        LocalUUIDEntry onDisk = getFromDisk(player, false);
+        return onDisk == null ? null : onDisk.getUuid();
     }
 
     public final String getNameFromUuid(@NonNull UUID player, boolean expensiveLookups) {
@@ -119,74 +196,384 @@ public final class UUIDTranslator {
             return ProxyServer.getInstance().getPlayer(player).getName();
 
         // Check if it exists in the map
-        CachedUUIDEntry cachedUUIDEntry = uuidToNameMap.get(player);
+        LocalUUIDEntry cachedUUIDEntry = uuidToNameMap.getIfPresent(player);
         if (cachedUUIDEntry != null) {
             if (!cachedUUIDEntry.expired())
                 return cachedUUIDEntry.getName();
             else
-                uuidToNameMap.remove(player);
-        }
-
-        // Okay, it wasn't locally cached. Let's try Redis.
-        try (Jedis jedis = plugin.getPool().getResource()) {
-            String stored = jedis.hget("uuid-cache", player.toString());
-            if (stored != null) {
-                // Found an entry value. Deserialize it.
-                CachedUUIDEntry entry = RedisBungee.getGson().fromJson(stored, CachedUUIDEntry.class);
-
-                // Check for expiry:
-                if (entry.expired()) {
-                    jedis.hdel("uuid-cache", player.toString());
-                    // Doesn't hurt to also remove the named entry as well.
-                    // TODO: Since UUIDs are fixed, we could look up the name and see if the UUID matches.
-                    jedis.hdel("uuid-cache", entry.getName());
-                } else {
-                    nameToUuidMap.put(entry.getName().toLowerCase(), entry);
-                    uuidToNameMap.put(player, entry);
-                    return entry.getName();
-                }
+                uuidToNameMap.invalidate(player);
+        }
+
+        LocalUUIDEntry onDisk = getFromDisk(player, false);
+        if (onDisk != null)
+            return onDisk.getName();
+
+        // Okay, it wasn't locally cached. Let's try Redis, unless it didn't know them a moment ago. A replica may
+        // answer the read.
+        try {
+            Boolean unknown = unknownUuids.getIfPresent(player);
+            if (unknown == null) {
+                CompactUUIDEntry entry = readEntries(Collections.singletonList(player.toString())).get(player.toString());
+                if (entry != null)
+                    return addToMaps(entry.getName(), player, entry.getExpiry()).getName();
+                unknownUuids.put(player, Boolean.FALSE);
             }
 
-            if (!expensiveLookups || !ProxyServer.getInstance().getConfig().isOnlineMode())
+            if (Boolean.TRUE.equals(unknown) || !expensiveLookups || !ProxyServer.getInstance().getConfig().isOnlineMode())
                 return null;
 
-            // That didn't work. Let's ask Mojang. This call may fail, because Mojang is insane.
-            String name;
+            // That didn't work. Let's ask Mojang.
+            return fetchNameFromMojang(player);
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法为指定玩家获取名称: " + player, e);
+            LocalUUIDEntry stale = getFromDisk(player, true);
+            return stale == null ? null : stale.getName();
+        }
+    }
+
+    /**
+     * Looks up the names of many players at once. Players are first looked up locally, then all the misses are read
+     * from {@code uuid-cache} in one round trip, and only then, if {@code expensiveLookups} is true, is Mojang asked
+     * about whatever is left. Players whose names can't be found are left out of the result.
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> players, boolean expensiveLookups) {
+        Map<UUID, String> names = new HashMap<>(players.size());
+        List<String> misses = new ArrayList<>();
+        // Players Redis doesn't know, who only Mojang might.
+        List<UUID> remaining = new ArrayList<>();
+        for (UUID player : players) {
+            ProxiedPlayer online = ProxyServer.getInstance().getPlayer(player);
+            if (online != null) {
+                names.put(player, online.getName());
+                continue;
+            }
+            LocalUUIDEntry cachedUUIDEntry = uuidToNameMap.getIfPresent(player);
+            if (cachedUUIDEntry != null && !cachedUUIDEntry.expired()) {
+                names.put(player, cachedUUIDEntry.getName());
+                continue;
+            }
+            LocalUUIDEntry onDisk = getFromDisk(player, false);
+            if (onDisk != null) {
+                names.put(player, onDisk.getName());
+                continue;
+            }
+            Boolean unknown = unknownUuids.getIfPresent(player);
+            if (unknown == null)
+                misses.add(player.toString());
+            else if (!unknown)
+                remaining.add(player);
+        }
+        if (misses.isEmpty() && remaining.isEmpty())
+            return names;
+
+        try {
+            if (!misses.isEmpty()) {
+                Map<String, CompactUUIDEntry> entries = readEntries(misses);
+                for (String miss : misses) {
+                    UUID uuid = UUID.fromString(miss);
+                    CompactUUIDEntry stored = entries.get(miss);
+                    if (stored != null) {
+                        names.put(uuid, addToMaps(stored.getName(), uuid, stored.getExpiry()).getName());
+                    } else {
+                        unknownUuids.put(uuid, Boolean.FALSE);
+                        remaining.add(uuid);
+                    }
+                }
+            }
+
+            // Mojang has no bulk lookup for names, so each of these is still a request of its own.
+            if (expensiveLookups && ProxyServer.getInstance().getConfig().isOnlineMode()) {
+                for (UUID uuid : remaining) {
+                    String name = fetchNameFromMojang(uuid);
+                    if (name != null)
+                        names.put(uuid, name);
+                }
+            }
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法为" + misses.size() + "名玩家获取名称", e);
+            for (String miss : misses) {
+                LocalUUIDEntry stale = getFromDisk(UUID.fromString(miss), true);
+                if (stale != null)
+                    names.put(stale.getUuid(), stale.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Looks up the UUIDs of many names at once, keyed by the names as given. Names are first looked up locally, then
+     * all the misses are read from {@code uuid-cache} in one round trip, and only then, if {@code expensiveLookups}
+     * is true, is Mojang asked about whatever is left in as few requests as it allows. Names that can't be found are
+     * left out of the result.
+     */
+    public final Map<String, UUID> getUuidsFromNames(@NonNull Collection<String> players, boolean expensiveLookups) {
+        Map<String, UUID> uuids = new HashMap<>(players.size());
+        // Keyed by lowercased name, and left holding the names Redis doesn't know, which only Mojang might.
+        Map<String, String> misses = new HashMap<>();
+        List<String> wanted = new ArrayList<>();
+        for (String player : players) {
+            UUID local = getLocalUuid(player);
+            if (local != null) {
+                uuids.put(player, local);
+                continue;
+            }
+            String key = player.toLowerCase();
+            Boolean unknown = unknownNames.getIfPresent(key);
+            if (Boolean.TRUE.equals(unknown))
+                continue;
+            misses.put(key, player);
+            if (unknown == null)
+                wanted.add(key);
+        }
+        if (misses.isEmpty())
+            return uuids;
+
+        try {
+            if (!wanted.isEmpty()) {
+                Map<String, CompactUUIDEntry> entries = readEntries(wanted);
+                for (String key : wanted) {
+                    CompactUUIDEntry stored = entries.get(key);
+                    if (stored == null) {
+                        unknownNames.put(key, Boolean.FALSE);
+                        continue;
+                    }
+                    addToMaps(stored.getName(), stored.getUuid(), stored.getExpiry());
+                    uuids.put(misses.remove(key), stored.getUuid());
+                }
+            }
+
+            if (expensiveLookups && ProxyServer.getInstance().getConfig().isOnlineMode() && !misses.isEmpty()) {
+                for (Map.Entry<String, UUID> entry : fetchUuidsFromMojang(misses.values()).entrySet()) {
+                    String player = misses.get(entry.getKey());
+                    if (player != null)
+                        uuids.put(player, entry.getValue());
+                }
+            }
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "无法为" + misses.size() + "名玩家获取UUID", e);
+            for (Map.Entry<String, String> miss : misses.entrySet()) {
+                LocalUUIDEntry stale = getFromDisk(miss.getKey(), true);
+                if (stale != null)
+                    uuids.put(miss.getValue(), stale.getUuid());
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * Reads many entries in one round trip, returning the ones that exist and haven't expired. Fields are lowercased
+     * names or UUIDs in string form, as the entries were keyed before uuid-cache was split into buckets.
+     */
+    private Map<String, CompactUUIDEntry> readEntries(List<String> fields) {
+        RedisStorage storage = plugin.getStorage();
+        List<byte[]> buckets = new ArrayList<>(fields.size());
+        List<byte[]> bucketFields = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            buckets.add(bucketOf(field));
+            bucketFields.add(fieldOf(field));
+        }
+        List<byte[]> current = storage.hgetStale(buckets, bucketFields);
+        // Entries the sweeper hasn't moved out of the old hash yet.
+        List<String> legacy = new ArrayList<>(fields.size());
+        if (isLegacyMigrated(storage)) {
+            legacy.addAll(Collections.<String>nCopies(fields.size(), null));
+        } else {
+            for (List<String> chunk : Lists.partition(fields, HMGET_CHUNK_SIZE)) {
+                legacy.addAll(storage.hmgetStale(RedisKeys.uuidCache(), chunk.toArray(new String[chunk.size()])));
+            }
+        }
+
+        Map<String, CompactUUIDEntry> entries = new HashMap<>();
+        List<String> expired = new ArrayList<>();
+        List<String> expiredLegacy = new ArrayList<>();
+        List<CompactUUIDEntry> migrated = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            String field = fields.get(i);
+            CompactUUIDEntry entry = CompactUUIDEntry.decode(current.get(i));
+            String stored = legacy.get(i);
+            if (entry == null && stored != null) {
+                CachedUUIDEntry old = RedisBungee.getGson().fromJson(stored, CachedUUIDEntry.class);
+                if (old.expired()) {
+                    expiredLegacy.add(field);
+                    continue;
+                }
+                entry = new CompactUUIDEntry(old.getName(), old.getUuid(), old.getExpiry().getTimeInMillis());
+                migrated.add(entry);
+            }
+            if (entry == null)
+                continue;
+            if (entry.expired())
+                expired.add(field);
+            else
+                entries.put(field, entry);
+        }
+
+        if (!expired.isEmpty() || !expiredLegacy.isEmpty() || !migrated.isEmpty()) {
+            RedisStorage.Batch batch = storage.batch();
+            for (String field : expired) {
+                batch.hdel(bucketOf(field), fieldOf(field));
+            }
+            if (!expiredLegacy.isEmpty())
+                batch.hdel(RedisKeys.uuidCache(), expiredLegacy.toArray(new String[expiredLegacy.size()]));
+            // Don't wait for the sweeper to move entries we've just read, but don't overwrite newer ones either.
+            for (CompactUUIDEntry entry : migrated) {
+                byte[] value = entry.encode();
+                batch.hsetnx(CompactUUIDEntry.nameBucket(entry.getName()), CompactUUIDEntry.nameField(entry.getName()), value);
+                batch.hsetnx(CompactUUIDEntry.uuidBucket(entry.getUuid()), CompactUUIDEntry.uuidField(entry.getUuid()), value);
+            }
+            batch.execute();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns whether the sweeper has emptied the old uuid-cache hash, looking for its marker at most once a minute.
+     */
+    private boolean isLegacyMigrated(RedisStorage storage) {
+        if (legacyMigrated)
+            return true;
+        long now = System.currentTimeMillis();
+        if (now - legacyCheckedAt < MIGRATION_CHECK_INTERVAL)
+            return false;
+        legacyCheckedAt = now;
+        return legacyMigrated = storage.getStale(RedisKeys.uuidCacheMigrated()) != null;
+    }
+
+    private static byte[] bucketOf(String field) {
+        return UUID_PATTERN.matcher(field).matches() ? CompactUUIDEntry.uuidBucket(UUID.fromString(field)) : CompactUUIDEntry.nameBucket(field);
+    }
+
+    private static byte[] fieldOf(String field) {
+        return UUID_PATTERN.matcher(field).matches() ? CompactUUIDEntry.uuidField(UUID.fromString(field)) : CompactUUIDEntry.nameField(field);
+    }
+
+    /**
+     * Asks Mojang for the UUIDs of {@code names}, skipping names it recently didn't know. Whatever it finds is stored
+     * in Redis, and whatever it doesn't is remembered. Returns the UUIDs keyed by lowercased name.
+     */
+    private Map<String, UUID> fetchUuidsFromMojang(Collection<String> names) {
+        List<String> wanted = new ArrayList<>();
+        for (String name : names) {
+            if (!Boolean.TRUE.equals(unknownNames.getIfPresent(name.toLowerCase())))
+                wanted.add(name);
+        }
+        Map<String, UUID> found = new HashMap<>();
+        if (wanted.isEmpty())
+            return found;
+
+        // Other lookups of the same names may already be in flight; these share their requests.
+        Map<String, ListenableFuture<MojangLookupService.Profile>> futures = new HashMap<>();
+        for (String name : wanted) {
+            futures.put(name, mojangLookups.getProfile(name));
+        }
+
+        List<MojangLookupService.Profile> fetched = new ArrayList<>();
+        long deadline = System.nanoTime() + MOJANG_TIMEOUT_NANOS;
+        for (Map.Entry<String, ListenableFuture<MojangLookupService.Profile>> entry : futures.entrySet()) {
+            MojangLookupService.Profile profile;
             try {
-                List<String> nameHist = NameFetcher.nameHistoryFromUuid(player);
-                name = Iterables.getLast(nameHist, null);
-            } catch (Exception e) {
-                plugin.getLogger().log(Level.SEVERE, "无法从Mojang为指定玩家获取名称: " + player, e);
-                return null;
+                profile = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (TimeoutException e) {
+                // Mojang is slow to answer. Rather than hold the caller up, make do with an old entry if we have one.
+                LocalUUIDEntry stale = getFromDisk(entry.getKey(), true);
+                if (stale != null)
+                    found.put(entry.getKey().toLowerCase(), stale.getUuid());
+                continue;
+            } catch (ExecutionException e) {
+                // Mojang being unavailable is already known and accounted for, so it isn't worth a stack trace.
+                if (!(e.getCause() instanceof MojangLookupService.UnavailableException))
+                    plugin.getLogger().log(Level.SEVERE, "无法从Mojang获取指定玩家的UUID: " + entry.getKey(), e.getCause());
+                continue;
             }
+            if (profile != null)
+                fetched.add(profile);
+            else
+                unknownNames.put(entry.getKey().toLowerCase(), Boolean.TRUE);
+        }
 
-            if (name != null) {
-                persistInfo(name, player, jedis);
-                return name;
+        if (!fetched.isEmpty()) {
+            RedisStorage.Batch batch = plugin.getStorage().batch();
+            for (MojangLookupService.Profile profile : fetched) {
+                persistInfo(profile.getName(), profile.getUuid(), batch);
+                found.put(profile.getName().toLowerCase(), profile.getUuid());
             }
+            batch.execute();
+        }
+        return found;
+    }
 
+    /**
+     * Asks Mojang for the name of {@code player}, unless it recently didn't know it. This call may fail, because
+     * Mojang is insane.
+     */
+    private String fetchNameFromMojang(UUID player) {
+        if (Boolean.TRUE.equals(unknownUuids.getIfPresent(player)))
             return null;
-        } catch (JedisException e) {
-            plugin.getLogger().log(Level.SEVERE, "无法为指定玩家获取名称: " + player, e);
+
+        String name;
+        try {
+            name = mojangLookups.getName(player).get(MOJANG_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (TimeoutException e) {
+            LocalUUIDEntry stale = getFromDisk(player, true);
+            return stale == null ? null : stale.getName();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof MojangLookupService.UnavailableException))
+                plugin.getLogger().log(Level.SEVERE, "无法从Mojang为指定玩家获取名称: " + player, e.getCause());
             return null;
         }
+
+        if (name == null) {
+            unknownUuids.put(player, Boolean.TRUE);
+            return null;
+        }
+        RedisStorage.Batch batch = plugin.getStorage().batch();
+        persistInfo(name, player, batch);
+        batch.execute();
+        return name;
     }
 
     public final void persistInfo(String name, UUID uuid, Jedis jedis) {
-        addToMaps(name, uuid);
-        String json = RedisBungee.getGson().toJson(uuidToNameMap.get(uuid));
-        jedis.hmset("uuid-cache", ImmutableMap.of(name.toLowerCase(), json, uuid.toString(), json));
+        byte[] value = cacheInfo(name, uuid).encode();
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.hset(CompactUUIDEntry.nameBucket(name), CompactUUIDEntry.nameField(name), value);
+        pipeline.hset(CompactUUIDEntry.uuidBucket(uuid), CompactUUIDEntry.uuidField(uuid), value);
+        pipeline.sync();
     }
 
     public final void persistInfo(String name, UUID uuid, Pipeline jedis) {
-        addToMaps(name, uuid);
-        String json = RedisBungee.getGson().toJson(uuidToNameMap.get(uuid));
-        jedis.hmset("uuid-cache", ImmutableMap.of(name.toLowerCase(), json, uuid.toString(), json));
+        byte[] value = cacheInfo(name, uuid).encode();
+        jedis.hset(CompactUUIDEntry.nameBucket(name), CompactUUIDEntry.nameField(name), value);
+        jedis.hset(CompactUUIDEntry.uuidBucket(uuid), CompactUUIDEntry.uuidField(uuid), value);
+    }
+
+    private void persistInfo(String name, UUID uuid, RedisStorage.Batch batch) {
+        byte[] value = cacheInfo(name, uuid).encode();
+        batch.hset(CompactUUIDEntry.nameBucket(name), CompactUUIDEntry.nameField(name), value);
+        batch.hset(CompactUUIDEntry.uuidBucket(uuid), CompactUUIDEntry.uuidField(uuid), value);
     }
 
+    /**
+     * Caches the entry locally and returns it, for callers that write it to Redis themselves.
+     */
+    public final CompactUUIDEntry cacheInfo(String name, UUID uuid) {
+        // Cache the entry for three days.
+        long expiry = System.currentTimeMillis() + ENTRY_LIFETIME;
+        addToMaps(name, uuid, expiry);
+        return new CompactUUIDEntry(name, uuid, expiry);
+    }
+
+    /**
+     * How entries were stored in the single {@code uuid-cache} hash, before it was split into buckets.
+     */
     @RequiredArgsConstructor
     @Getter
-    private class CachedUUIDEntry {
+    static class CachedUUIDEntry {
         private final String name;
         private final UUID uuid;
         private final Calendar expiry;
@@ -195,4 +582,16 @@ public final class UUIDTranslator {
             return Calendar.getInstance().after(expiry);
         }
     }
+
+    @RequiredArgsConstructor
+    @Getter
+    private static class LocalUUIDEntry {
+        private final String name;
+        private final UUID uuid;
+        private final long expiry;
+
+        public boolean expired() {
+            return System.currentTimeMillis() > expiry;
+        }
+    }
 }
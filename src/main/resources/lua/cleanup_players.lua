@@ -0,0 +1,47 @@
+local call = redis.call
+
+-- Every key comes from RedisKeys. The per-server sets are only known once a player's hash has been read, so their
+-- names are put together from the start and end RedisKeys gives for them.
+-- KEYS: the proxy's epoch, its player set, that set's checksum, then the hash of each player in the order of ARGV,
+-- then, if given, the fencing counter of the lease the caller holds
+-- ARGV: the proxy being cleaned up, the time they left, the proxy's epoch as the caller saw it (or "" if it has none),
+-- the caller's fencing token (or ""), the start and end of the proxy's per-server set names, then the players to
+-- clean up
+-- Takes the players out of the proxy's sets and marks them offline. Players whose hash names a different proxy have
+-- since joined it, so only the set membership is removed for them. Returns the players that were marked offline, or
+-- false without changing anything if a newer instance has claimed the proxy's ID or the caller's fencing token is out
+-- of date.
+local proxy = ARGV[1]
+local players = #ARGV - 6
+local fenceKey = KEYS[4 + players]
+if (call("GET", KEYS[1]) or "") ~= ARGV[3] then
+    return false
+end
+if fenceKey and call("GET", fenceKey) ~= ARGV[4] then
+    return false
+end
+
+local checksum = tonumber(call("GET", KEYS[3]) or "0")
+local cleaned = {}
+
+for i = 1, players do
+    local uuid = ARGV[6 + i]
+    local key = KEYS[3 + i]
+    local current = call("HMGET", key, "proxy", "server")
+    if not current[1] or current[1] == proxy then
+        if current[2] then
+            call("SREM", ARGV[5] .. current[2] .. ARGV[6], uuid)
+        end
+        call("HDEL", key, "server", "ip", "proxy")
+        call("HSET", key, "online", ARGV[2])
+        table.insert(cleaned, uuid)
+    end
+    if call("SREM", KEYS[2], uuid) == 1 then
+        -- Keep the checksum proxy_players.lua maintains.
+        checksum = bit.bxor(checksum, bit.tobit(tonumber(string.sub(redis.sha1hex(uuid), 1, 8), 16)))
+    end
+end
+
+call("SET", KEYS[3], checksum)
+
+return cleaned
\ No newline at end of file
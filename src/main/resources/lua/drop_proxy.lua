@@ -0,0 +1,31 @@
+local call = redis.call
+
+-- Every key comes from RedisKeys. The per-server sets are named in the proxy's server list, so their names are put
+-- together from the start and end RedisKeys gives for them.
+-- KEYS: the proxy's epoch, its player set, that set's checksum, its server list, the proxy-counts and data-protocol
+-- hashes, then, if given, the fencing counter of the lease the caller holds
+-- ARGV: the proxy, its epoch as the caller saw it (or "" if it has none), the caller's fencing token (or ""), "1" to
+-- also forget the proxy's player count and data protocol, then the start and end of its per-server set names
+-- Deletes what is left of a proxy once cleanup_players.lua has marked its players offline: its player set and the
+-- checksum kept with it, and its per-server index. Returns 1, or false without changing anything if a newer instance
+-- has claimed the proxy's ID or the caller's fencing token is out of date.
+local proxy = ARGV[1]
+if (call("GET", KEYS[1]) or "") ~= ARGV[2] then
+    return false
+end
+if KEYS[7] and call("GET", KEYS[7]) ~= ARGV[3] then
+    return false
+end
+
+call("DEL", KEYS[2], KEYS[3])
+for _, server in ipairs(call("SMEMBERS", KEYS[4])) do
+    call("DEL", ARGV[5] .. server .. ARGV[6])
+end
+call("DEL", KEYS[4])
+
+if ARGV[4] == "1" then
+    call("HDEL", KEYS[5], proxy)
+    call("HDEL", KEYS[6], proxy)
+end
+
+return 1
\ No newline at end of file
@@ -0,0 +1,13 @@
+local call = redis.call
+
+-- KEYS: the hash holding each field, one key per field
+-- ARGV: field, value, field, value, ... Each field is only deleted if it still holds the value given for it.
+local removed = 0
+
+for i = 1, #KEYS do
+    if call("HGET", KEYS[i], ARGV[2 * i - 1]) == ARGV[2 * i] then
+        removed = removed + call("HDEL", KEYS[i], ARGV[2 * i - 1])
+    end
+end
+
+return removed
\ No newline at end of file
@@ -0,0 +1,30 @@
+local call = redis.call
+
+-- Every key comes from RedisKeys; none are built here.
+-- KEYS: the player set of every other live proxy, then the hash of each player to check, in the order of ARGV
+-- ARGV: the players to check
+-- Returns the players some other proxy has, then the rest, each followed by the server their hash still names ("" if
+-- none)
+local players = #ARGV
+local proxies = #KEYS - players
+local elsewhere = {}
+local orphans = {}
+
+for i = 1, players do
+    local uuid = ARGV[i]
+    local found = false
+    for j = 1, proxies do
+        if call("SISMEMBER", KEYS[j], uuid) == 1 then
+            found = true
+            break
+        end
+    end
+    if found then
+        table.insert(elsewhere, uuid)
+    else
+        table.insert(orphans, uuid)
+        table.insert(orphans, call("HGET", KEYS[proxies + i], "server") or "")
+    end
+end
+
+return { elsewhere, orphans }
\ No newline at end of file
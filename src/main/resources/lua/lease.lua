@@ -0,0 +1,25 @@
+local call = redis.call
+
+-- KEYS[1]: the lease, then the counter fencing tokens are taken from, if there is one
+-- ARGV: our token, the new time to live in milliseconds or 0 to give the lease up, then "acquire" to also take the
+-- lease if nobody holds it
+-- Returns {1} if we hold the lease afterwards, {0} if not, and {1, token} if we have just taken it.
+if ARGV[3] == "acquire" and call("SET", KEYS[1], ARGV[1], "NX", "PX", ARGV[2]) then
+    -- Taken in the same script as the lease, so a newer token never goes to anyone without it.
+    if KEYS[2] then
+        return {1, call("INCR", KEYS[2])}
+    end
+    return {1}
+end
+
+if call("GET", KEYS[1]) ~= ARGV[1] then
+    return {0}
+end
+
+if tonumber(ARGV[2]) > 0 then
+    call("PEXPIRE", KEYS[1], ARGV[2])
+else
+    call("DEL", KEYS[1])
+end
+
+return {1}
\ No newline at end of file
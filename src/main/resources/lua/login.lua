@@ -0,0 +1,30 @@
+local call = redis.call
+
+-- Every key comes from RedisKeys; none are built here.
+-- KEYS: our epoch, our player set, its checksum, the player's hash, the uuid-cache buckets of their name and UUID,
+-- then the player set of every live proxy
+-- ARGV: uuid, our proxy ID, address, name field, uuid-cache entry, UUID field, our epoch
+-- Returns 1 if the player was let in, 0 if they are already online elsewhere, or -1 if a newer instance has claimed
+-- our proxy ID.
+local uuid = ARGV[1]
+
+if call("GET", KEYS[1]) ~= ARGV[7] then
+    return -1
+end
+
+for i = 7, #KEYS do
+    if call("SISMEMBER", KEYS[i], uuid) == 1 then
+        return 0
+    end
+end
+
+if call("SADD", KEYS[2], uuid) == 1 then
+    -- Keep the checksum proxy_players.lua maintains.
+    local checksum = tonumber(call("GET", KEYS[3]) or "0")
+    call("SET", KEYS[3], bit.bxor(checksum, bit.tobit(tonumber(string.sub(redis.sha1hex(uuid), 1, 8), 16))))
+end
+call("HMSET", KEYS[4], "online", "0", "ip", ARGV[3], "proxy", ARGV[2])
+call("HSET", KEYS[5], ARGV[4], ARGV[5])
+call("HSET", KEYS[6], ARGV[6], ARGV[5])
+
+return 1
\ No newline at end of file
@@ -0,0 +1,24 @@
+local call = redis.call
+
+-- KEYS[1]: a proxy's player set
+-- KEYS[2]: the checksum kept alongside it
+-- ARGV: "add" or "remove", then the players
+-- Adds the players to the set or removes them from it, keeping the checksum the XOR of the first 32 bits of the SHA1
+-- of every member. Returns how many players were added or removed.
+local add = ARGV[1] == "add"
+local checksum = tonumber(call("GET", KEYS[2]) or "0")
+local changed = 0
+
+for i = 2, #ARGV do
+    local player = ARGV[i]
+    if call(add and "SADD" or "SREM", KEYS[1], player) == 1 then
+        checksum = bit.bxor(checksum, bit.tobit(tonumber(string.sub(redis.sha1hex(player), 1, 8), 16)))
+        changed = changed + 1
+    end
+end
+
+if changed > 0 then
+    call("SET", KEYS[2], checksum)
+end
+
+return changed
\ No newline at end of file
@@ -0,0 +1,31 @@
+local call = redis.call
+local ipairs = ipairs
+
+-- Every key comes from RedisKeys. The per-server sets are named in each proxy's server list, so their names are put
+-- together from the start and end RedisKeys gives for them.
+-- KEYS: the server list of every live proxy
+-- ARGV: the end of the per-server set names, then the start of them for each proxy, in the order of KEYS
+local counts = {}
+local servers = {}
+
+for i, serverList in ipairs(KEYS) do
+    for _, server in ipairs(call("SMEMBERS", serverList)) do
+        local count = call("SCARD", ARGV[i + 1] .. server .. ARGV[1])
+        if count > 0 then
+            if not counts[server] then
+                counts[server] = 0
+                servers[#servers + 1] = server
+            end
+            counts[server] = counts[server] + count
+        end
+    end
+end
+
+local result = {}
+
+for _, server in ipairs(servers) do
+    result[#result + 1] = server
+    result[#result + 1] = counts[server]
+end
+
+return result
\ No newline at end of file
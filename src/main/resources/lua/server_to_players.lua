@@ -1,13 +1,17 @@
 local call = redis.call
 local ipairs = ipairs
 
+-- Every key comes from RedisKeys. The per-server sets are named in each proxy's server list, so their names are put
+-- together from the start and end RedisKeys gives for them.
+-- KEYS: the server list of every live proxy
+-- ARGV: the end of the per-server set names, then the start of them for each proxy, in the order of KEYS
 local serverToData = {}
 
-for _, proxy in ipairs(ARGV) do
-    local players = call("SMEMBERS", "proxy:" .. proxy .. ":usersOnline")
-    for _, player in ipairs(players) do
-        local server = call("HGET", "player:" .. player, "server")
-        if server then
+for i, serverList in ipairs(KEYS) do
+    local servers = call("SMEMBERS", serverList)
+    for _, server in ipairs(servers) do
+        local players = call("SMEMBERS", ARGV[i + 1] .. server .. ARGV[1])
+        for _, player in ipairs(players) do
             local sz = #serverToData
             serverToData[sz + 1] = server
             serverToData[sz + 2] = player
@@ -0,0 +1,44 @@
+local call = redis.call
+
+-- KEYS[1]: the bucket
+-- ARGV: capacity, tokens added per second, the caller's time in milliseconds, tokens wanted
+local capacity = tonumber(ARGV[1])
+local rate = tonumber(ARGV[2])
+local wanted = tonumber(ARGV[4])
+
+-- Refill by Redis' clock, so a proxy whose clock runs ahead can't take the tokens the others are owed. Reading it
+-- needs effects replication, which Redis before 3.2 lacks, so those fall back to the caller's clock.
+local now
+if redis.replicate_commands and redis.replicate_commands() then
+    local time = call("TIME")
+    now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+else
+    now = tonumber(ARGV[3])
+end
+
+local bucket = call("HMGET", KEYS[1], "tokens", "updated")
+local tokens = tonumber(bucket[1])
+local updated = tonumber(bucket[2])
+
+if tokens == nil or updated == nil then
+    tokens = capacity
+    updated = now
+end
+
+-- Callers' clocks differ a little, so never move the bucket back in time.
+if now > updated then
+    tokens = math.min(capacity, tokens + (now - updated) * rate / 1000)
+    updated = now
+end
+
+local granted = 0
+if tokens >= wanted then
+    tokens = tokens - wanted
+    granted = 1
+end
+
+call("HMSET", KEYS[1], "tokens", tostring(tokens), "updated", tostring(updated))
+-- An idle bucket is full again after this long, so it can simply go away.
+call("PEXPIRE", KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+
+return granted
\ No newline at end of file
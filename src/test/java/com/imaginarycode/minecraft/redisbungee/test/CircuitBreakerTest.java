@@ -0,0 +1,39 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.CircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        Assert.assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        Assert.assertTrue(breaker.isOpen());
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertEquals(2, breaker.getRejected());
+    }
+
+    @Test
+    public void testLetsOneTrialThroughAfterCoolingDown() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.recordFailure();
+        Assert.assertFalse(breaker.allowRequest());
+
+        Thread.sleep(100);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        Assert.assertFalse(breaker.isOpen());
+        Assert.assertTrue(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,53 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.CompactUUIDEntry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the uuid-cache bucket format.
+ */
+public class CompactUUIDEntryTest {
+    // Redis only keeps a hash in the listpack encoding while every value is at most this long.
+    private static final int LISTPACK_VALUE_LIMIT = 64;
+
+    @Test
+    public void testRoundTrip() {
+        UUID uuid = UUID.randomUUID();
+        long expiry = TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3)));
+        CompactUUIDEntry entry = new CompactUUIDEntry("Notch", uuid, expiry);
+        Assert.assertEquals(entry, CompactUUIDEntry.decode(entry.encode()));
+        Assert.assertFalse(CompactUUIDEntry.decode(entry.encode()).expired());
+        Assert.assertTrue(new CompactUUIDEntry("Notch", uuid, expiry - TimeUnit.DAYS.toMillis(4)).expired());
+    }
+
+    @Test
+    public void testUnknownDataIsNotAnEntry() {
+        Assert.assertNull(CompactUUIDEntry.decode(null));
+        Assert.assertNull(CompactUUIDEntry.decode(new byte[0]));
+        Assert.assertNull(CompactUUIDEntry.decode("{\"name\":\"Notch\"}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testFieldsHashToBothHalvesOfTheBuckets() {
+        boolean[] seen = new boolean[2];
+        for (int i = 0; i < 100; i++) {
+            int bucket = RedisKeys.uuidCacheBucket(CompactUUIDEntry.nameField("player" + i));
+            Assert.assertTrue(bucket >= 0 && bucket < RedisKeys.UUID_CACHE_BUCKETS);
+            seen[bucket * 2 / RedisKeys.UUID_CACHE_BUCKETS] = true;
+        }
+        Assert.assertTrue(seen[0] && seen[1]);
+        Assert.assertEquals(RedisKeys.uuidCacheBucket(CompactUUIDEntry.nameField("Notch")), RedisKeys.uuidCacheBucket(CompactUUIDEntry.nameField("notch")));
+    }
+
+    @Test
+    public void testEntriesFitAListpack() {
+        byte[] compact = new CompactUUIDEntry("ALongestNameHere", UUID.randomUUID(), System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3)).encode();
+        Assert.assertTrue("entries must fit a listpack hash", compact.length <= LISTPACK_VALUE_LIMIT);
+    }
+}
@@ -0,0 +1,186 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.imaginarycode.minecraft.redisbungee.DataManager;
+import com.imaginarycode.minecraft.redisbungee.PlayerRecordCache;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.RedisStorage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.logging.Logger;
+
+public class DataManagerTest {
+    private static final Logger LOGGER = Logger.getLogger("DataManagerTest");
+
+    private final UUID online = UUID.randomUUID();
+    private final UUID offline = UUID.randomUUID();
+    private final UUID unknown = UUID.randomUUID();
+    private final UUID here = UUID.randomUUID();
+    private final List<UUID> players = ImmutableList.of(online, offline, unknown);
+
+    private final StubStorage storage = new StubStorage();
+    private final StubPlayers localPlayers = new StubPlayers();
+    private final DataManager dataManager = new DataManager(null, localPlayers,
+            new PlayerRecordCache(storage, "maximumSize=1000", 60, LOGGER), LOGGER);
+
+    public DataManagerTest() {
+        storage.players.put(RedisKeys.player(online), Arrays.asList("lobby", "proxy-2", "203.0.113.7", "0"));
+        storage.players.put(RedisKeys.player(offline), Arrays.asList(null, null, null, "1500000000"));
+        localPlayers.players.put(here, new DataManager.PlayerRecord("survival", "proxy-1", InetAddresses.forString("203.0.113.8"), 0));
+    }
+
+    @Test
+    public void testBulkLookupsReadRedisOnce() {
+        Map<UUID, String> servers = dataManager.getServers(players);
+        Assert.assertEquals(3, servers.size());
+        Assert.assertEquals("lobby", servers.get(online));
+        Assert.assertNull(servers.get(offline));
+        Assert.assertTrue(servers.containsKey(unknown));
+        Assert.assertNull(servers.get(unknown));
+        Assert.assertEquals(1, storage.reads);
+
+        Map<UUID, String> proxies = dataManager.getProxies(players);
+        Assert.assertEquals("proxy-2", proxies.get(online));
+        Assert.assertNull(proxies.get(offline));
+        Assert.assertNull(proxies.get(unknown));
+
+        Map<UUID, InetAddress> ips = dataManager.getIps(players);
+        Assert.assertEquals(InetAddresses.forString("203.0.113.7"), ips.get(online));
+        Assert.assertNull(ips.get(offline));
+        Assert.assertNull(ips.get(unknown));
+
+        Map<UUID, Long> lastOnline = dataManager.getLastOnlineTimes(players);
+        Assert.assertEquals(Long.valueOf(0), lastOnline.get(online));
+        Assert.assertEquals(Long.valueOf(1500000000), lastOnline.get(offline));
+        Assert.assertEquals(Long.valueOf(-1), lastOnline.get(unknown));
+
+        Map<UUID, Boolean> areOnline = dataManager.arePlayersOnline(players);
+        Assert.assertEquals(Boolean.TRUE, areOnline.get(online));
+        Assert.assertEquals(Boolean.FALSE, areOnline.get(offline));
+        Assert.assertEquals(Boolean.FALSE, areOnline.get(unknown));
+
+        // Every answer after the first comes from the records and unknown players it cached.
+        Assert.assertEquals(1, storage.reads);
+    }
+
+    @Test
+    public void testLocalPlayersAreNotReadFromRedis() {
+        Map<UUID, String> servers = dataManager.getServers(ImmutableList.of(here));
+        Assert.assertEquals("survival", servers.get(here));
+        Assert.assertEquals(Long.valueOf(0), dataManager.getLastOnlineTimes(ImmutableList.of(here)).get(here));
+        Assert.assertEquals(Boolean.TRUE, dataManager.arePlayersOnline(ImmutableList.of(here)).get(here));
+        Assert.assertEquals(0, storage.reads);
+
+        Map<UUID, String> proxies = dataManager.getProxies(ImmutableList.of(here, online));
+        Assert.assertEquals("proxy-1", proxies.get(here));
+        Assert.assertEquals("proxy-2", proxies.get(online));
+        Assert.assertEquals(1, storage.reads);
+        Assert.assertEquals(1, storage.keysRead);
+    }
+
+    @Test
+    public void testCompleteLocalPlayersAnswerForOfflinePlayers() {
+        localPlayers.complete = true;
+        Map<UUID, String> servers = dataManager.getServers(players);
+        Assert.assertEquals(3, servers.size());
+        Assert.assertNull(servers.get(online));
+        Assert.assertEquals(Boolean.FALSE, dataManager.arePlayersOnline(players).get(offline));
+        Assert.assertEquals(0, storage.reads);
+
+        // Only Redis knows when an offline player was last on.
+        Assert.assertEquals(Long.valueOf(1500000000), dataManager.getLastOnlineTimes(players).get(offline));
+        Assert.assertEquals(1, storage.reads);
+    }
+
+    @Test
+    public void testEmptyLookupDoesNotReadRedis() {
+        Assert.assertTrue(dataManager.getServers(Collections.<UUID>emptyList()).isEmpty());
+        Assert.assertTrue(dataManager.arePlayersOnline(Collections.<UUID>emptyList()).isEmpty());
+        Assert.assertEquals(0, storage.reads);
+    }
+
+    private static class StubPlayers implements DataManager.LocalPlayers {
+        private final Map<UUID, DataManager.PlayerRecord> players = new HashMap<>();
+        private boolean complete;
+
+        @Override
+        public DataManager.PlayerRecord get(UUID uuid) {
+            return players.get(uuid);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    /**
+     * Knows the player hashes in {@code players}, and counts the round trips made to read them.
+     */
+    private static class StubStorage implements RedisStorage {
+        private final Map<String, List<String>> players = new HashMap<>();
+        private int reads;
+        private int keysRead;
+
+        @Override
+        public List<String> hmgetStale(String key, String... fields) {
+            reads++;
+            keysRead++;
+            return read(key, fields);
+        }
+
+        @Override
+        public List<List<String>> hmgetStale(List<String> keys, String... fields) {
+            reads++;
+            keysRead += keys.size();
+            List<List<String>> values = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                values.add(read(key, fields));
+            }
+            return values;
+        }
+
+        private List<String> read(String key, String... fields) {
+            List<String> values = players.get(key);
+            return values != null ? values : Arrays.asList(new String[fields.length]);
+        }
+
+        @Override
+        public String getStale(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String scriptLoad(String script) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(String script, String sha, List<String> keys, List<String> args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object evalBinary(String script, String sha, List<byte[]> keys, List<byte[]> args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<byte[]> hgetStale(List<byte[]> keys, List<byte[]> fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Batch batch() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.DataManager;
+import com.imaginarycode.minecraft.redisbungee.DataMessageCodec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares the JSON and binary encodings of {@code redisbungee-data} messages: the size of each message on the wire,
+ * and the time taken and bytes allocated to encode and decode it. Not a unit test, so it doesn't run with the build.
+ * <p>
+ * Run it from the test classpath, optionally with the number of iterations:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.imaginarycode.minecraft.redisbungee.test.DataMessageCodecBenchmark -Dexec.args=100000
+ * </pre>
+ * Allocations are read from {@code com.sun.management.ThreadMXBean}, and reported as 0 on JVMs without it.
+ */
+public class DataMessageCodecBenchmark {
+    private static final UUID TARGET = UUID.fromString("68ec43f7-234b-41b4-8764-dfb38b9ffe8c");
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // Everything produced is folded into this, so the JIT can't skip the work.
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.println(String.format("%-14s %-7s %6s %12s %12s %12s %12s",
+                "action", "codec", "bytes", "enc ns/msg", "enc B/msg", "dec ns/msg", "dec B/msg"));
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            report(message, "json", false, iterations);
+            report(message, "binary", true, iterations);
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static List<DataManager.DataManagerMessage<?>> messages() throws Exception {
+        UUID[] batch = new UUID[50];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = UUID.randomUUID();
+        }
+        return Arrays.<DataManager.DataManagerMessage<?>>asList(
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(InetAddress.getByName("203.0.113.7"))),
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.LEAVE,
+                        new DataManager.LogoutPayload(1500000000000L)),
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload("survival", "lobby")),
+                new DataManager.DataManagerMessage<>(DataMessageCodec.NO_TARGET, "proxy-1", DataManager.DataManagerMessage.Action.LEAVE_BATCH,
+                        new DataManager.BatchLogoutPayload(Arrays.asList(batch), 1500000000000L))
+        );
+    }
+
+    private static void report(DataManager.DataManagerMessage<?> message, String name, boolean binary, int iterations) {
+        byte[] data = encode(message, binary);
+        // Warm both paths up before measuring them.
+        encodeAll(message, binary, iterations);
+        decodeAll(data, iterations);
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        encodeAll(message, binary, iterations);
+        long encodeTime = System.nanoTime() - start;
+        long encodeAllocated = allocatedBytes() - allocated;
+
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        decodeAll(data, iterations);
+        long decodeTime = System.nanoTime() - start;
+        long decodeAllocated = allocatedBytes() - allocated;
+
+        System.out.println(String.format("%-14s %-7s %6d %12d %12d %12d %12d", message.getAction(), name, data.length,
+                encodeTime / iterations, encodeAllocated / iterations, decodeTime / iterations, decodeAllocated / iterations));
+    }
+
+    private static byte[] encode(DataManager.DataManagerMessage<?> message, boolean binary) {
+        return binary ? DataMessageCodec.encodeBinary(message) : DataMessageCodec.encodeJson(message);
+    }
+
+    private static void encodeAll(DataManager.DataManagerMessage<?> message, boolean binary, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            sink += encode(message, binary).length;
+        }
+    }
+
+    private static void decodeAll(byte[] data, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            sink += DataMessageCodec.decode(data).getSource().length();
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
@@ -0,0 +1,101 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.DataManager;
+import com.imaginarycode.minecraft.redisbungee.DataMessageCodec;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class DataMessageCodecTest {
+    private static final UUID TARGET = UUID.fromString("68ec43f7-234b-41b4-8764-dfb38b9ffe8c");
+
+    private List<DataManager.DataManagerMessage<?>> messages() throws Exception {
+        return Arrays.<DataManager.DataManagerMessage<?>>asList(
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(InetAddress.getByName("203.0.113.7"))),
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.LEAVE,
+                        new DataManager.LogoutPayload(1500000000000L)),
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload("survival", "lobby")),
+                new DataManager.DataManagerMessage<>(TARGET, "proxy-1", DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload("lobby", null)),
+                new DataManager.DataManagerMessage<>(DataMessageCodec.NO_TARGET, "proxy-1", DataManager.DataManagerMessage.Action.LEAVE_BATCH,
+                        new DataManager.BatchLogoutPayload(Arrays.asList(TARGET, UUID.randomUUID(), UUID.randomUUID()), 1500000000000L))
+        );
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            assertSameMessage(message, DataMessageCodec.decode(DataMessageCodec.encodeBinary(message)));
+        }
+    }
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            assertSameMessage(message, DataMessageCodec.decode(DataMessageCodec.encodeJson(message)));
+        }
+    }
+
+    @Test
+    public void testBinaryVersionMatchesAction() throws Exception {
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            int expected = message.getAction() == DataManager.DataManagerMessage.Action.LEAVE_BATCH
+                    ? DataMessageCodec.BATCH_VERSION : DataMessageCodec.BINARY_VERSION;
+            Assert.assertEquals(expected, DataMessageCodec.encodeBinary(message)[1]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownActionIsRejected() throws Exception {
+        byte[] data = DataMessageCodec.encodeBinary(messages().get(1));
+        data[2] = (byte) 200;
+        DataMessageCodec.decode(data);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewerVersionIsRejected() throws Exception {
+        byte[] data = DataMessageCodec.encodeBinary(messages().get(1));
+        data[1] = (byte) (DataMessageCodec.SUPPORTED_VERSION + 1);
+        DataMessageCodec.decode(data);
+    }
+
+    @Test
+    public void testBatchSplitsIntoLeaves() {
+        DataManager.BatchLogoutPayload payload = new DataManager.BatchLogoutPayload(Arrays.asList(TARGET, UUID.randomUUID()), 1500000000000L);
+        List<DataManager.DataManagerMessage<DataManager.LogoutPayload>> leaves = payload.split("proxy-1");
+        Assert.assertEquals(2, leaves.size());
+        for (int i = 0; i < leaves.size(); i++) {
+            Assert.assertEquals(payload.getPlayers().get(i), leaves.get(i).getTarget());
+            Assert.assertEquals("proxy-1", leaves.get(i).getSource());
+            Assert.assertEquals(DataManager.DataManagerMessage.Action.LEAVE, leaves.get(i).getAction());
+            Assert.assertEquals(1500000000000L, leaves.get(i).getPayload().getTimestamp());
+        }
+    }
+
+    private void assertSameMessage(DataManager.DataManagerMessage<?> expected, DataManager.DataManagerMessage<?> actual) {
+        Assert.assertEquals(expected.getTarget(), actual.getTarget());
+        Assert.assertEquals(expected.getSource(), actual.getSource());
+        Assert.assertEquals(expected.getAction(), actual.getAction());
+        Object expectedPayload = expected.getPayload();
+        Object actualPayload = actual.getPayload();
+        if (expectedPayload instanceof DataManager.LoginPayload) {
+            Assert.assertEquals(((DataManager.LoginPayload) expectedPayload).getAddress(), ((DataManager.LoginPayload) actualPayload).getAddress());
+        } else if (expectedPayload instanceof DataManager.LogoutPayload) {
+            Assert.assertEquals(((DataManager.LogoutPayload) expectedPayload).getTimestamp(), ((DataManager.LogoutPayload) actualPayload).getTimestamp());
+        } else if (expectedPayload instanceof DataManager.BatchLogoutPayload) {
+            Assert.assertEquals(((DataManager.BatchLogoutPayload) expectedPayload).getPlayers(), ((DataManager.BatchLogoutPayload) actualPayload).getPlayers());
+            Assert.assertEquals(((DataManager.BatchLogoutPayload) expectedPayload).getTimestamp(), ((DataManager.BatchLogoutPayload) actualPayload).getTimestamp());
+        } else {
+            DataManager.ServerChangePayload expectedChange = (DataManager.ServerChangePayload) expectedPayload;
+            DataManager.ServerChangePayload actualChange = (DataManager.ServerChangePayload) actualPayload;
+            Assert.assertEquals(expectedChange.getServer(), actualChange.getServer());
+            Assert.assertEquals(expectedChange.getOldServer(), actualChange.getOldServer());
+        }
+    }
+}
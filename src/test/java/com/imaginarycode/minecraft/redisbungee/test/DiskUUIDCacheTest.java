@@ -0,0 +1,158 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.uuid.CompactUUIDEntry;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.DiskUUIDCache;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class DiskUUIDCacheTest {
+    private static final Logger LOGGER = Logger.getLogger(DiskUUIDCacheTest.class.getName());
+    private static final long EXPIRY = TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3)));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntriesSurviveReopening() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        CompactUUIDEntry entry = new CompactUUIDEntry("Notch", UUID.randomUUID(), EXPIRY);
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(entry);
+        }
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            Assert.assertEquals(entry, cache.getByName("notch"));
+            Assert.assertEquals(entry, cache.getByUuid(entry.getUuid()));
+        }
+    }
+
+    @Test
+    public void testEntriesAreWrittenOnFlush() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(new CompactUUIDEntry("Notch", UUID.randomUUID(), EXPIRY));
+            Assert.assertNotNull(cache.getByName("notch"));
+            Assert.assertEquals(0, file.length());
+            cache.flush();
+            Assert.assertTrue(file.length() > 0);
+        }
+    }
+
+    @Test
+    public void testRenamesAndTakenNames() throws IOException {
+        try (DiskUUIDCache cache = new DiskUUIDCache(folder.newFile(), 100, LOGGER)) {
+            UUID first = UUID.randomUUID();
+            UUID second = UUID.randomUUID();
+            cache.put(new CompactUUIDEntry("Old", first, EXPIRY));
+            cache.put(new CompactUUIDEntry("New", first, EXPIRY));
+            Assert.assertNull(cache.getByName("old"));
+            Assert.assertEquals("New", cache.getByUuid(first).getName());
+
+            // Someone else takes the name the first player used to have.
+            cache.put(new CompactUUIDEntry("New", second, EXPIRY));
+            Assert.assertNull(cache.getByUuid(first));
+            Assert.assertEquals(second, cache.getByName("new").getUuid());
+        }
+    }
+
+    @Test
+    public void testOldestEntriesAreEvicted() throws IOException {
+        try (DiskUUIDCache cache = new DiskUUIDCache(folder.newFile(), 10, LOGGER)) {
+            for (int i = 0; i < 20; i++) {
+                cache.put(new CompactUUIDEntry("player" + i, UUID.randomUUID(), EXPIRY));
+            }
+            Assert.assertEquals(10, cache.size());
+            Assert.assertNull(cache.getByName("player9"));
+            Assert.assertNotNull(cache.getByName("player10"));
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsLiveEntries() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            for (int i = 0; i < 2000; i++) {
+                cache.put(new CompactUUIDEntry("player" + (i % 100), UUID.nameUUIDFromBytes(("player" + (i % 100)).getBytes()), EXPIRY + i * 1000L));
+            }
+            Assert.assertTrue(cache.needsCompaction());
+            cache.flush();
+            long before = file.length();
+            cache.compact();
+            Assert.assertFalse(cache.needsCompaction());
+            Assert.assertTrue(file.length() * 10 < before);
+            cache.put(new CompactUUIDEntry("later", UUID.randomUUID(), EXPIRY));
+        }
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            Assert.assertEquals(100, cache.size());
+            Assert.assertNotNull(cache.getByName("later"));
+            Assert.assertEquals(EXPIRY + 1999 * 1000L, cache.getByName("player99").getExpiry());
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        CompactUUIDEntry entry = new CompactUUIDEntry("Notch", UUID.randomUUID(), EXPIRY);
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(entry);
+        }
+        long length = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 30, 1, 2});
+        }
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            Assert.assertEquals(entry, cache.getByName("notch"));
+            Assert.assertEquals(length, file.length());
+        }
+    }
+
+    @Test
+    public void testUndecodableRecordIsSkipped() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        CompactUUIDEntry first = new CompactUUIDEntry("Notch", UUID.randomUUID(), EXPIRY);
+        CompactUUIDEntry second = new CompactUUIDEntry("jeb_", UUID.randomUUID(), EXPIRY);
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(first);
+        }
+        // A whole record in a format this version doesn't know.
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 3, 99, 1, 2});
+        }
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(second);
+        }
+        long length = file.length();
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            Assert.assertEquals(first, cache.getByName("notch"));
+            Assert.assertEquals(second, cache.getByName("jeb_"));
+            Assert.assertEquals(length, file.length());
+        }
+    }
+
+    @Test
+    public void testFailedCompactionKeepsPendingEntries() throws IOException {
+        File file = new File(folder.getRoot(), "uuid-cache.dat");
+        CompactUUIDEntry entry = new CompactUUIDEntry("Notch", UUID.randomUUID(), EXPIRY);
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            cache.put(entry);
+            // The compacted file can't be created where a directory is in the way.
+            Assert.assertTrue(new File(file.getPath() + ".tmp").mkdir());
+            try {
+                cache.compact();
+                Assert.fail("compaction should have failed");
+            } catch (IOException expected) {
+            }
+        }
+        try (DiskUUIDCache cache = new DiskUUIDCache(file, 100, LOGGER)) {
+            Assert.assertEquals(entry, cache.getByName("notch"));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.MojangLookupService;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.NameFetcher;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.UUIDFetcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link MojangLookupService} against a local stand-in for the Mojang API, which knows every name starting
+ * with "player" and counts the requests it gets.
+ */
+public class MojangLookupServiceTest {
+    private final Gson gson = new Gson();
+    private final AtomicInteger profileRequests = new AtomicInteger();
+    private final AtomicInteger nameRequests = new AtomicInteger();
+    private HttpServer server;
+    private ScheduledExecutorService executor;
+    private CountDownLatch release = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/profiles/minecraft", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                profileRequests.incrementAndGet();
+                String[] names = gson.fromJson(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), String[].class);
+                List<Map<String, String>> profiles = new ArrayList<>();
+                for (String name : names) {
+                    if (name.toLowerCase().startsWith("player")) {
+                        Map<String, String> profile = new HashMap<>();
+                        profile.put("id", uuidFor(name).toString().replace("-", ""));
+                        profile.put("name", name.toLowerCase());
+                        profiles.add(profile);
+                    }
+                }
+                respond(exchange, gson.toJson(profiles));
+            }
+        });
+        server.createContext("/user/profiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nameRequests.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, "[{\"name\":\"oldname\"},{\"name\":\"currentname\",\"changedToAt\":1}]");
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        OkHttpClient httpClient = new OkHttpClient();
+        UUIDFetcher.setHttpClient(httpClient);
+        UUIDFetcher.setProfileUrl(base + "/profiles/minecraft");
+        NameFetcher.setHttpClient(httpClient);
+        NameFetcher.setProfilesUrl(base + "/user/profiles/");
+        executor = Executors.newScheduledThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        UUIDFetcher.setProfileUrl("https://api.mojang.com/profiles/minecraft");
+        NameFetcher.setProfilesUrl("https://api.mojang.com/user/profiles/");
+        executor.shutdownNow();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneRequest() throws Exception {
+        MojangLookupService service = new MojangLookupService(executor, 100);
+        List<ListenableFuture<MojangLookupService.Profile>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(service.getProfile("Player" + (i % 10)));
+        }
+        futures.add(service.getProfile("nobody"));
+
+        List<MojangLookupService.Profile> profiles = Futures.allAsList(futures).get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals("player" + (i % 10), profiles.get(i).getName());
+            Assert.assertEquals(uuidFor("player" + (i % 10)), profiles.get(i).getUuid());
+        }
+        Assert.assertNull(profiles.get(50));
+        Assert.assertEquals(1, profileRequests.get());
+        Assert.assertEquals(1, service.getRequests());
+        Assert.assertEquals(40, service.getCoalesced());
+    }
+
+    @Test
+    public void testBatchesAreLimitedToOneHundredNames() throws Exception {
+        MojangLookupService service = new MojangLookupService(executor, 100);
+        List<ListenableFuture<MojangLookupService.Profile>> futures = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            futures.add(service.getProfile("player" + i));
+        }
+
+        List<MojangLookupService.Profile> profiles = Futures.allAsList(futures).get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 250; i++) {
+            Assert.assertEquals(uuidFor("player" + i), profiles.get(i).getUuid());
+        }
+        Assert.assertEquals(3, profileRequests.get());
+    }
+
+    @Test
+    public void testConcurrentNameLookupsShareOneRequest() throws Exception {
+        release = new CountDownLatch(1);
+        MojangLookupService service = new MojangLookupService(executor, 100);
+        UUID uuid = uuidFor("player");
+        List<ListenableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(service.getName(uuid));
+        }
+        release.countDown();
+
+        for (String name : Futures.allAsList(futures).get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals("currentname", name);
+        }
+        Assert.assertEquals(1, nameRequests.get());
+    }
+
+    private static UUID uuidFor(String name) {
+        return UUID.nameUUIDFromBytes(name.toLowerCase().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
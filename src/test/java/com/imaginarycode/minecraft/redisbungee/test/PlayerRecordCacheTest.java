@@ -0,0 +1,159 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.DataManager;
+import com.imaginarycode.minecraft.redisbungee.PlayerRecordCache;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.RedisStorage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+public class PlayerRecordCacheTest {
+    private final CountingStorage storage = new CountingStorage();
+    private final PlayerRecordCache cache = new PlayerRecordCache(storage, "maximumSize=1000", 60, Logger.getLogger("PlayerRecordCacheTest"));
+
+    @Test
+    public void testUnknownPlayerIsReadOnce() throws ExecutionException {
+        UUID player = UUID.randomUUID();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull(cache.get(player));
+        }
+        Assert.assertEquals(1, storage.reads);
+
+        Map<UUID, ?> records = cache.getAll(ImmutableList.of(player));
+        Assert.assertTrue(records.containsKey(player));
+        Assert.assertNull(records.get(player));
+        Assert.assertEquals(1, storage.reads);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBulkLookupRemembersUnknownPlayers() throws ExecutionException {
+        List<UUID> players = ImmutableList.of(UUID.randomUUID(), UUID.randomUUID());
+        cache.getAll(players);
+        cache.getAll(players);
+        Assert.assertEquals(1, storage.reads);
+
+        Assert.assertNull(cache.get(players.get(0)));
+        Assert.assertEquals(1, storage.reads);
+    }
+
+    @Test
+    public void testBulkLookupOfLastOnline() throws ExecutionException {
+        UUID online = UUID.randomUUID();
+        UUID offline = UUID.randomUUID();
+        UUID unknown = UUID.randomUUID();
+        storage.known.put(RedisKeys.player(online.toString()), Arrays.<String>asList(null, "proxy", "127.0.0.1", "0"));
+        storage.known.put(RedisKeys.player(offline.toString()), Arrays.<String>asList(null, null, null, "1500000000000"));
+
+        Map<UUID, DataManager.PlayerRecord> records = cache.getAll(ImmutableList.of(online, offline, unknown));
+        Assert.assertEquals(1, storage.reads);
+        Assert.assertEquals(0, records.get(online).getLastOnline());
+        Assert.assertEquals(1500000000000L, records.get(offline).getLastOnline());
+        Assert.assertTrue(records.containsKey(unknown));
+        Assert.assertNull(records.get(unknown));
+
+        Assert.assertEquals(1500000000000L, cache.get(offline).getLastOnline());
+        Assert.assertEquals(1, storage.reads);
+    }
+
+    @Test
+    public void testLoginDuringReadIsNotRememberedAsUnknown() throws ExecutionException {
+        final UUID player = UUID.randomUUID();
+        storage.duringRead = new Runnable() {
+            @Override
+            public void run() {
+                cache.invalidate(player);
+            }
+        };
+        Assert.assertNull(cache.get(player));
+        Assert.assertEquals(1, storage.reads);
+
+        storage.duringRead = null;
+        Assert.assertNull(cache.get(player));
+        Assert.assertEquals(2, storage.reads);
+    }
+
+    @Test
+    public void testLoginForgetsUnknownPlayer() throws ExecutionException {
+        UUID player = UUID.randomUUID();
+        Assert.assertNull(cache.get(player));
+        cache.invalidate(player);
+        Assert.assertNull(cache.get(player));
+        Assert.assertEquals(2, storage.reads);
+    }
+
+    /**
+     * Knows only the player hashes put in {@link #known}, and counts the round trips made to read them.
+     */
+    private static class CountingStorage implements RedisStorage {
+        private final Map<String, List<String>> known = new HashMap<>();
+        private int reads;
+        private Runnable duringRead;
+
+        @Override
+        public List<String> hmgetStale(String key, String... fields) {
+            read();
+            return fieldsOf(key, fields);
+        }
+
+        @Override
+        public List<List<String>> hmgetStale(List<String> keys, String... fields) {
+            read();
+            List<List<String>> values = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                values.add(fieldsOf(key, fields));
+            }
+            return values;
+        }
+
+        private List<String> fieldsOf(String key, String[] fields) {
+            List<String> values = known.get(key);
+            return values != null ? values : Arrays.asList(new String[fields.length]);
+        }
+
+        private void read() {
+            reads++;
+            if (duringRead != null)
+                duringRead.run();
+        }
+
+        @Override
+        public String getStale(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String scriptLoad(String script) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(String script, String sha, List<String> keys, List<String> args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object evalBinary(String script, String sha, List<byte[]> keys, List<byte[]> args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<byte[]> hgetStale(List<byte[]> keys, List<byte[]> fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Batch batch() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
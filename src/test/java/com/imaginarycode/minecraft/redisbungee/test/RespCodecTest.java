@@ -0,0 +1,65 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.common.base.Charsets;
+import com.imaginarycode.minecraft.redisbungee.util.RespCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.List;
+
+public class RespCodecTest {
+    private final EmbeddedChannel channel = new EmbeddedChannel(new RespCodec.Decoder());
+
+    @Test
+    public void testEncodesCommand() {
+        ByteBuf out = Unpooled.buffer();
+        RespCodec.encode(out, bytes("HGET"), bytes("key"), new byte[0]);
+        Assert.assertEquals("*3\r\n$4\r\nHGET\r\n$3\r\nkey\r\n$0\r\n\r\n", out.toString(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testDecodesEachReplyType() {
+        write("+OK\r\n:42\r\n$5\r\nhello\r\n$-1\r\n-ERR wrong\r\n");
+        Assert.assertArrayEquals(bytes("OK"), (byte[]) channel.readInbound());
+        Assert.assertEquals(42L, channel.readInbound());
+        Assert.assertArrayEquals(bytes("hello"), (byte[]) channel.readInbound());
+        Assert.assertSame(RespCodec.NIL, channel.readInbound());
+        Assert.assertEquals("ERR wrong", ((JedisDataException) channel.readInbound()).getMessage());
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void testDecodesNestedArrayWithNils() {
+        write("*3\r\n:1\r\n$-1\r\n*1\r\n$1\r\nx\r\n");
+        List<?> reply = (List<?>) channel.readInbound();
+        Assert.assertEquals(3, reply.size());
+        Assert.assertEquals(1L, reply.get(0));
+        Assert.assertNull(reply.get(1));
+        Assert.assertArrayEquals(bytes("x"), (byte[]) ((List<?>) reply.get(2)).get(0));
+    }
+
+    @Test
+    public void testWaitsForSplitReply() {
+        write("*2\r\n$5\r\nhel");
+        Assert.assertNull(channel.readInbound());
+        write("lo\r\n:7");
+        Assert.assertNull(channel.readInbound());
+        write("\r\n+OK\r\n");
+        List<?> reply = (List<?>) channel.readInbound();
+        Assert.assertArrayEquals(bytes("hello"), (byte[]) reply.get(0));
+        Assert.assertEquals(7L, reply.get(1));
+        Assert.assertArrayEquals(bytes("OK"), (byte[]) channel.readInbound());
+    }
+
+    private void write(String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, Charsets.UTF_8));
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,104 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.gson.Gson;
+import com.imaginarycode.minecraft.redisbungee.util.RedisKeys;
+import com.imaginarycode.minecraft.redisbungee.util.uuid.CompactUUIDEntry;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.Calendar;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much Redis memory a uuid-cache entry takes in the old single-hash layout and in the bucketed compact
+ * layout. It loads the same players in each layout in turn, and reports the growth of {@code used_memory} per player
+ * along with the encoding Redis picked for the hashes. Not a unit test, so it doesn't run with the build.
+ * <p>
+ * Point it at a Redis that nothing else is writing to, since any other writes are counted too:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.imaginarycode.minecraft.redisbungee.test.UUIDCacheMemoryReport \
+ *     -Dexec.args="localhost 6379 100000"
+ * </pre>
+ * Every key it writes is under a prefix of its own, and deleted once it has been measured.
+ */
+public class UUIDCacheMemoryReport {
+    private static final Gson GSON = new Gson();
+
+    public static void main(String[] args) {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6379;
+        int players = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        RedisKeys.setPrefix("memory-report-" + UUID.randomUUID() + ":");
+
+        UUID[] uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = UUID.randomUUID();
+        }
+        long expiry = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3);
+
+        try (Jedis jedis = new Jedis(host, port)) {
+            if (args.length > 3)
+                jedis.auth(args[3]);
+
+            long before = usedMemory(jedis);
+            Pipeline pipeline = jedis.pipelined();
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(expiry);
+            for (int i = 0; i < players; i++) {
+                String value = GSON.toJson(new LegacyEntry(name(i), uuids[i], calendar));
+                pipeline.hset(RedisKeys.uuidCache(), name(i).toLowerCase(), value);
+                pipeline.hset(RedisKeys.uuidCache(), uuids[i].toString(), value);
+            }
+            pipeline.sync();
+            report("single hash", players, usedMemory(jedis) - before, jedis.objectEncoding(RedisKeys.uuidCache()));
+            jedis.del(RedisKeys.uuidCache());
+
+            before = usedMemory(jedis);
+            pipeline = jedis.pipelined();
+            for (int i = 0; i < players; i++) {
+                byte[] value = new CompactUUIDEntry(name(i), uuids[i], expiry).encode();
+                pipeline.hset(CompactUUIDEntry.nameBucket(name(i)), CompactUUIDEntry.nameField(name(i)), value);
+                pipeline.hset(CompactUUIDEntry.uuidBucket(uuids[i]), CompactUUIDEntry.uuidField(uuids[i]), value);
+            }
+            pipeline.sync();
+            report("buckets", players, usedMemory(jedis) - before, jedis.objectEncoding(CompactUUIDEntry.nameBucket(name(0))));
+
+            pipeline = jedis.pipelined();
+            for (int i = 0; i < RedisKeys.UUID_CACHE_BUCKETS; i++) {
+                pipeline.del(RedisKeys.uuidCacheNames(i), RedisKeys.uuidCacheUuids(i));
+            }
+            pipeline.sync();
+        }
+    }
+
+    // Sixteen characters, the longest a Minecraft name can be.
+    private static String name(int i) {
+        return String.format("Player_%09d", i);
+    }
+
+    private static long usedMemory(Jedis jedis) {
+        for (String line : jedis.info("memory").split("\r\n")) {
+            if (line.startsWith("used_memory:"))
+                return Long.parseLong(line.substring("used_memory:".length()));
+        }
+        throw new IllegalStateException("INFO memory has no used_memory");
+    }
+
+    private static void report(String layout, int players, long bytes, String encoding) {
+        System.out.println(String.format("%-12s %d players, %d bytes, %d bytes per player (%s)",
+                layout, players, bytes, bytes / players, encoding));
+    }
+
+    /**
+     * An entry as the old single hash stored it, see {@code UUIDTranslator.CachedUUIDEntry}.
+     */
+    @RequiredArgsConstructor
+    private static class LegacyEntry {
+        private final String name;
+        private final UUID uuid;
+        private final Calendar expiry;
+    }
+}